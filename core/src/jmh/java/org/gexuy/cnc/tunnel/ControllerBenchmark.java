@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Game allocation and the client timeout sweep.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ControllerBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Allocation {
+        TunnelController controller;
+
+        @Setup
+        public void setup() {
+            Main.logger.setLevel(TunnelLog.Level.ERROR);
+            controller = new TunnelController("bench", null, 0, 60000, null, null, 0, 1);
+        }
+
+        // hand the queued timeouts to the wheel so they don't pile up
+        @TearDown(Level.Iteration)
+        public void drain() {
+            controller.expire(System.currentTimeMillis());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Sweep {
+        @Param({ "1000", "10000", "60000" })
+        int clients;
+
+        TunnelController controller;
+
+        @Setup
+        public void setup() {
+            Main.logger.setLevel(TunnelLog.Level.ERROR);
+            controller = new TunnelController("bench", null, 0, clients, null, null, 0, 1);
+            while (controller.getClientCount() + 8 <= clients) {
+                controller.createGame(8, "127.0.0.1");
+            }
+        }
+    }
+
+    /**
+     * Allocates and frees an 8 player game from four threads at once.
+     */
+    @Benchmark
+    @Threads(4)
+    public GameSession allocate(Allocation state) {
+        GameSession game = state.controller.createGame(8, "127.0.0.1");
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < game.size(); i++) {
+            state.controller.removeClient(game.getClient(i), now);
+        }
+        return game;
+    }
+
+    /**
+     * One housekeeping pass where nobody has timed out yet.
+     */
+    @Benchmark
+    public void sweep(Sweep state) {
+        state.controller.expire(System.currentTimeMillis());
+    }
+}
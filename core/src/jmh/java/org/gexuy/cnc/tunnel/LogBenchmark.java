@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What a log call costs the calling thread. The writer thread runs in the
+ * background, once the queue is full the calls measure the drop path.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LogBenchmark {
+
+    private final TunnelLog.Counter counter = Main.logger.counter("benchmark events");
+    private int n = 0;
+
+    @Setup
+    public void setup() {
+        Main.logger.setLevel(TunnelLog.Level.INFO);
+    }
+
+    @Benchmark
+    public void log() {
+        Main.log("Client " + (n++) + " allocated.");
+    }
+
+    @Benchmark
+    public void logFiltered() {
+        if (Main.isLogging(TunnelLog.Level.DEBUG)) {
+            Main.log(TunnelLog.Level.DEBUG, "Ignoring packet " + (n++));
+        }
+    }
+
+    @Benchmark
+    public void counter() {
+        counter.increment();
+    }
+}
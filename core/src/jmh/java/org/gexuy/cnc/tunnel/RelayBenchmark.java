@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Header parsing and client checks the relay does for every packet.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RelayBenchmark {
+
+    private DatagramChannel channel;
+    private Relay relay;
+    private TunnelPort port;
+    private InetSocketAddress from;
+    private ByteBuffer valid;
+    private ByteBuffer unknown;
+    private ByteBuffer spoofed;
+
+    @Setup
+    public void setup() throws IOException {
+        Main.logger.setLevel(TunnelLog.Level.ERROR);
+
+        TunnelController controller = new TunnelController("bench", null, 0, 8, null, null, 0, 1);
+        GameSession game = controller.createGame(8, "127.0.0.1");
+
+        channel = Relay.open(0, false);
+        relay = new Relay(controller, channel, new IdleStrategy.Block(), 1);
+        port = controller.getPort(0);
+
+        from = new InetSocketAddress("127.0.0.1", 40000);
+        InetSocketAddress other = new InetSocketAddress("127.0.0.2", 40000);
+
+        short a = game.getClient(0).getId();
+        short b = game.getClient(1).getId();
+        game.getClient(0).setAddress(from);
+        game.getClient(1).setAddress(other);
+
+        short u = (short)(a + 1);
+        while (controller.getClient(u) != null) {
+            u++;
+        }
+
+        valid = packet(a, b);
+        spoofed = packet(b, a);
+        unknown = packet(u, b);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        channel.close();
+    }
+
+    private static ByteBuffer packet(short from, short to) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(64);
+        buf.putShort(from);
+        buf.putShort(to);
+        buf.position(buf.capacity());
+        buf.flip();
+        return buf;
+    }
+
+    @Benchmark
+    public Client routeValid() {
+        valid.rewind();
+        return relay.route(valid, from, port, 0);
+    }
+
+    @Benchmark
+    public Client routeUnknownSender() {
+        unknown.rewind();
+        return relay.route(unknown, from, port, 0);
+    }
+
+    @Benchmark
+    public Client routeSpoofed() {
+        spoofed.rewind();
+        return relay.route(spoofed, from, port, 0);
+    }
+}
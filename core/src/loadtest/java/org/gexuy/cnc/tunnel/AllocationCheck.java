@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.util.function.Consumer;
+
+/**
+ * Makes sure a warmed up relay forwards packets without allocating. A relay
+ * worker is started on a loopback port and clients send to each other, the
+ * bytes the worker thread allocated while forwarding are read from the
+ * ThreadMXBean. Exits with an error when they go over the limit so that
+ * "gradle check" fails.
+ *
+ * The JDK remembers the last sender of a channel and allocates a new
+ * InetSocketAddress in receive() whenever it changes. One sender on the
+ * shared port and several on their own connected ports have to be free of
+ * allocations. Several senders on the shared port are held to a bound per
+ * packet for that address instead, anything over it is the tunnel's own.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class AllocationCheck {
+
+    private static final int WARMUP = 100000;
+    private static final int PACKETS = 100000;
+
+    // leeway for whatever the JIT does while we measure
+    private static final long LIMIT = 1024;
+
+    // the InetSocketAddress receive() makes for a new sender, 128 bytes with
+    // compressed oops
+    private static final long SENDER_CHANGE = 160;
+
+    private static com.sun.management.ThreadMXBean mx;
+    private static Thread relay;
+    private static boolean failed = false;
+
+    public static void main(String[] args) throws Exception {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("Allocation check skipped, this JVM can't count allocated bytes.");
+            return;
+        }
+
+        try {
+            Selector.class.getMethod("select", Consumer.class, long.class);
+        } catch (NoSuchMethodException e) {
+            System.out.println("Allocation check skipped, selectors allocate before Java 11.");
+            return;
+        }
+
+        mx = (com.sun.management.ThreadMXBean)threads;
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        Main.logger.setLevel(TunnelLog.Level.ERROR);
+
+        TunnelController controller = new TunnelController("allocation", null, 0, 16, null, null, 0, 1);
+        DatagramChannel channel = Relay.open(0, false);
+        int port = ((InetSocketAddress)channel.getLocalAddress()).getPort();
+        InetSocketAddress tunnel = new InetSocketAddress("127.0.0.1", port);
+
+        Relay worker = new Relay(controller, channel, new IdleStrategy.Block(), 64);
+        Main.relays = new Relay[] { worker };
+        relay = new Thread(worker, "Relay-0");
+        relay.setDaemon(true);
+        relay.start();
+
+        ByteBuffer buf = ByteBuffer.allocateDirect(64);
+
+        // one sender on the shared port
+        GameSession single = controller.createGame(2, "127.0.0.1");
+        DatagramChannel[] senders = { open() };
+        DatagramChannel receiver = open();
+        learn(receiver, single.getClient(1).getId(), single.getClient(0).getId(), tunnel, buf);
+        check("one sender on the shared port", senders, new short[] { single.getClient(0).getId() },
+            new InetSocketAddress[] { tunnel }, single.getClient(1).getId(), receiver, buf, LIMIT);
+
+        // two senders taking turns on the shared port
+        GameSession shared = controller.createGame(3, "127.0.0.1");
+        senders = new DatagramChannel[] { open(), open() };
+        receiver = open();
+        learn(receiver, shared.getClient(2).getId(), shared.getClient(0).getId(), tunnel, buf);
+        check("two senders on the shared port", senders, new short[] { shared.getClient(0).getId(), shared.getClient(1).getId() },
+            new InetSocketAddress[] { tunnel, tunnel }, shared.getClient(2).getId(), receiver, buf, LIMIT + PACKETS * SENDER_CHANGE);
+
+        // two senders taking turns, each on its own connected port
+        controller.setGamePorts(port + 1, Math.min(port + 64, 65535));
+        GameSession own = controller.createGame(3, "127.0.0.1");
+        senders = new DatagramChannel[] { open(), open() };
+        receiver = open();
+        InetSocketAddress[] ports = new InetSocketAddress[3];
+        for (int i = 0; i < 3; i++) {
+            if (own.getClient(i).getChannel() == null) {
+                System.out.println("Allocation check failed, no free game ports after " + port + ".");
+                System.exit(1);
+            }
+            ports[i] = new InetSocketAddress("127.0.0.1", own.getClient(i).getPort());
+        }
+        short[] ids = { own.getClient(0).getId(), own.getClient(1).getId(), own.getClient(2).getId() };
+        learn(receiver, ids[2], ids[0], ports[2], buf);
+        learn(senders[0], ids[0], ids[2], ports[0], buf);
+        learn(senders[1], ids[1], ids[2], ports[1], buf);
+        receiver.configureBlocking(false);
+        while (receiver.receive(buf) != null) {
+            buf.clear();
+        }
+        receiver.configureBlocking(true);
+        check("two senders on their own ports", senders, new short[] { ids[0], ids[1] },
+            new InetSocketAddress[] { ports[0], ports[1] }, ids[2], receiver, buf, LIMIT);
+
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static DatagramChannel open() throws Exception {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        return channel;
+    }
+
+    /**
+     * Makes the tunnel learn where a client is, nothing can reach it before.
+     */
+    private static void learn(DatagramChannel channel, short from, short to, InetSocketAddress tunnel, ByteBuffer buf) throws Exception {
+        send(channel, from, to, tunnel, buf);
+        Thread.sleep(100);
+    }
+
+    private static void check(String name, DatagramChannel[] senders, short[] from, InetSocketAddress[] tunnel, short to, DatagramChannel receiver, ByteBuffer buf, long limit) throws Exception {
+        forward(senders, from, tunnel, to, receiver, buf, WARMUP);
+
+        long before = mx.getThreadAllocatedBytes(relay.getId());
+        forward(senders, from, tunnel, to, receiver, buf, PACKETS);
+        long allocated = mx.getThreadAllocatedBytes(relay.getId()) - before;
+
+        System.out.println("Relay allocated " + allocated + " bytes forwarding " + PACKETS + " packets from " + name + ".");
+
+        if (allocated > limit) {
+            System.out.println("Allocation check failed, the limit is " + limit + " bytes.");
+            failed = true;
+        }
+    }
+
+    private static void forward(DatagramChannel[] senders, short[] from, InetSocketAddress[] tunnel, short to, DatagramChannel receiver, ByteBuffer buf, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            int s = i % senders.length;
+            send(senders[s], from[s], to, tunnel[s], buf);
+            buf.clear();
+            receiver.receive(buf);
+        }
+    }
+
+    private static void send(DatagramChannel channel, short from, short to, InetSocketAddress tunnel, ByteBuffer buf) throws Exception {
+        buf.clear();
+        buf.putShort(from);
+        buf.putShort(to);
+        buf.putLong(0);
+        buf.flip();
+        channel.send(buf, tunnel);
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Soak test against an in-process tunnel. Games are requested through
+ * /request like a real client would, then every player sends a timestamped
+ * packet to every other player on each tick over loopback. At the end we
+ * report the packet rate, the drop rate and the latency the tunnel adds.
+ *
+ * Players share a small set of sockets, the tunnel only checks the source
+ * IP and the receiver is found from the header of the forwarded packet.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class LoadTest {
+
+    // latency histogram with 1us buckets, everything slower lands in the last one
+    private static final int BUCKETS = 100000;
+
+    // sub steps a tick is divided into
+    private static final int STEPS = 100;
+
+    private static class Player {
+        short id;
+        short[] peers;
+        DatagramChannel socket;
+    }
+
+    private static int games = 1000;
+    private static int minPlayers = 2;
+    private static int maxPlayers = 8;
+    private static int tickrate = 15;
+    private static int duration = 30;
+    private static int size = 64;
+    private static int sockets = 64;
+    private static int port = 50000;
+    private static int workers = 1;
+
+    private static final AtomicLong sent = new AtomicLong();
+    private static final AtomicLong received = new AtomicLong();
+    private static final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+    private static volatile boolean measuring = false;
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-games") && i < args.length - 1) {
+                games = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-players") && i < args.length - 1) {
+                String[] range = args[++i].split("-");
+                minPlayers = Math.max(Integer.parseInt(range[0]), 2);
+                maxPlayers = Math.min(Integer.parseInt(range[range.length - 1]), 8);
+            } else if (args[i].equals("-tickrate") && i < args.length - 1) {
+                tickrate = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-duration") && i < args.length - 1) {
+                duration = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-size") && i < args.length - 1) {
+                size = Math.max(Integer.parseInt(args[++i]), 12);
+            } else if (args[i].equals("-sockets") && i < args.length - 1) {
+                sockets = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-port") && i < args.length - 1) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-workers") && i < args.length - 1) {
+                workers = Integer.parseInt(args[++i]);
+            } else {
+                System.out.println("Arguments: [-games <number>] [-players <min-max>] [-tickrate <hz>] [-duration <seconds>] [-size <bytes>] [-sockets <number>] [-port <number>] [-workers <number>]");
+                return;
+            }
+        }
+
+        startTunnel();
+
+        Random random = new Random();
+        List<Player> players = new ArrayList<Player>();
+        DatagramChannel[] channels = new DatagramChannel[sockets];
+        Selector selector = Selector.open();
+
+        for (int i = 0; i < sockets; i++) {
+            channels[i] = DatagramChannel.open();
+            channels[i].bind(new InetSocketAddress("127.0.0.1", 0));
+            channels[i].configureBlocking(false);
+            channels[i].register(selector, SelectionKey.OP_READ);
+        }
+
+        for (int g = 0; g < games; g++) {
+            int count = minPlayers + random.nextInt(maxPlayers - minPlayers + 1);
+            short[] ids = request(count);
+            for (int i = 0; i < ids.length; i++) {
+                Player p = new Player();
+                p.id = ids[i];
+                p.peers = new short[ids.length - 1];
+                for (int j = 0, k = 0; j < ids.length; j++) {
+                    if (j != i) {
+                        p.peers[k++] = ids[j];
+                    }
+                }
+                p.socket = channels[players.size() % sockets];
+                players.add(p);
+            }
+        }
+
+        System.out.println(games + " games with " + players.size() + " players allocated.");
+
+        Thread receiver = new Thread(new Receiver(selector), "LoadTest-Receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        InetSocketAddress tunnel = new InetSocketAddress("127.0.0.1", port);
+        ByteBuffer buf = ByteBuffer.allocateDirect(size);
+
+        // let the tunnel learn every address before we start counting
+        for (Player p : players) {
+            send(p, p.peers[0], tunnel, buf);
+        }
+        Thread.sleep(1000);
+
+        measuring = true;
+
+        // games don't tick in lockstep, spread the players over the tick
+        int steps = Math.min(STEPS, players.size());
+        long stepNanos = 1000000000L / tickrate / steps;
+        long start = System.nanoTime();
+        long end = start + duration * 1000000000L;
+        long next = start;
+
+        while (System.nanoTime() < end) {
+            for (int step = 0; step < steps; step++) {
+                for (int i = step; i < players.size(); i += steps) {
+                    Player p = players.get(i);
+                    for (short peer : p.peers) {
+                        send(p, peer, tunnel, buf);
+                        sent.incrementAndGet();
+                    }
+                }
+
+                next += stepNanos;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        // give packets in flight a moment
+        Thread.sleep(500);
+        measuring = false;
+        running = false;
+
+        report(elapsed);
+        System.exit(0);
+    }
+
+    private static void startTunnel() throws InterruptedException {
+        Main.headless = true;
+        Main.nomaster = true;
+        Main.port = port;
+        Main.maxclients = games * maxPlayers;
+        Main.iplimit = 0;
+        Main.workers = workers;
+        Main.loglevel = TunnelLog.Level.WARN;
+
+        Thread tunnel = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Main.start();
+            }
+        }, "LoadTest-Tunnel");
+        tunnel.setDaemon(true);
+        tunnel.start();
+
+        while (Main.controller == null || Main.relays == null) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(200);
+    }
+
+    private static short[] request(int count) throws IOException {
+        URL url = new URL("http://127.0.0.1:" + port + "/request?clients=" + count);
+        HttpURLConnection con = (HttpURLConnection)url.openConnection();
+        if (con.getResponseCode() != 200) {
+            throw new IOException("Tunnel refused a game of " + count + " with status " + con.getResponseCode());
+        }
+
+        StringBuilder sb = new StringBuilder();
+        InputStream in = con.getInputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            sb.append((char)c);
+        }
+        in.close();
+
+        String[] parts = sb.toString().replace("[", "").replace("]", "").split(",");
+        short[] ids = new short[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            ids[i] = Short.parseShort(parts[i].trim());
+        }
+        return ids;
+    }
+
+    private static void send(Player p, short to, InetSocketAddress tunnel, ByteBuffer buf) throws IOException {
+        buf.clear();
+        buf.putShort(p.id);
+        buf.putShort(to);
+        buf.putLong(System.nanoTime());
+        while (buf.hasRemaining()) {
+            buf.put((byte)0);
+        }
+        buf.flip();
+        p.socket.send(buf, tunnel);
+    }
+
+    private static class Receiver implements Runnable {
+        private final Selector selector;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(4096);
+
+        Receiver(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    if (selector.select(100) == 0) {
+                        continue;
+                    }
+
+                    for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+                        DatagramChannel chan = (DatagramChannel)i.next().channel();
+                        i.remove();
+
+                        buf.clear();
+                        while (chan.receive(buf) != null) {
+                            long now = System.nanoTime();
+                            buf.flip();
+                            if (measuring && buf.remaining() >= 12) {
+                                long micros = (now - buf.getLong(4)) / 1000;
+                                latency.incrementAndGet((int)Math.min(Math.max(micros, 0), BUCKETS - 1));
+                                received.incrementAndGet();
+                            }
+                            buf.clear();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long s = sent.get();
+        long r = received.get();
+
+        System.out.println(String.format("Duration : %.1f s", seconds));
+        System.out.println(String.format("Sent     : %d packets, %.0f pps", s, s / seconds));
+        System.out.println(String.format("Received : %d packets, %.0f pps", r, r / seconds));
+        System.out.println(String.format("Dropped  : %.3f %%", s == 0 ? 0.0 : 100.0 * (s - r) / s));
+        System.out.println("Latency  : p50 " + percentile(r, 0.5) + " us, p99 " + percentile(r, 0.99) + " us, p999 " + percentile(r, 0.999) + " us");
+    }
+
+    private static long percentile(long total, double p) {
+        long target = (long)Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += latency.get(i);
+            if (seen >= target && seen > 0) {
+                return i;
+            }
+        }
+        return BUCKETS - 1;
+    }
+}
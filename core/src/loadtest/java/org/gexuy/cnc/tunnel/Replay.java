@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a capture made with -capture back against a tunnel. The captured
+ * clients are grouped into games by who talked to whom, every group gets a
+ * fresh game through /request and every captured client its own socket.
+ * Packets then go out with the same sizes and the same spacing as they
+ * were captured, or faster with -rate.
+ *
+ * Only packets the capturing tunnel routed are played back, the tunnel
+ * under test needs -iplimit 0 and no -sourcelimit as every client is on
+ * the same host. Broadcasts are played back as broadcasts.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class Replay {
+
+    private static class Packet {
+        long seq;
+        long time;
+        int from;
+        int to;
+        int length;
+        byte[] payload;
+    }
+
+    private static String file = null;
+    private static String host = "127.0.0.1";
+    private static int port = 50000;
+    private static double rate = 1.0;
+
+    private static final AtomicLong received = new AtomicLong();
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-file") && i < args.length - 1) {
+                file = args[++i];
+            } else if (args[i].equals("-host") && i < args.length - 1) {
+                host = args[++i];
+            } else if (args[i].equals("-port") && i < args.length - 1) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-rate") && i < args.length - 1) {
+                rate = Double.parseDouble(args[++i]);
+            } else {
+                file = null;
+                break;
+            }
+        }
+
+        if (file == null) {
+            System.out.println("Arguments: -file <path> [-host <address>] [-port <number>] [-rate <factor, 0 for as fast as possible>]");
+            return;
+        }
+
+        List<Packet> packets = read(file);
+        if (packets.isEmpty()) {
+            System.out.println("Nothing to replay in " + file + ".");
+            return;
+        }
+
+        // clients that talked to each other were in the same game
+        Map<Integer, Integer> parent = new HashMap<Integer, Integer>();
+        for (Packet p : packets) {
+            if (isBroadcast(p)) {
+                find(parent, p.from);
+            } else {
+                union(parent, p.from, p.to);
+            }
+        }
+
+        Map<Integer, List<Integer>> groups = new HashMap<Integer, List<Integer>>();
+        for (Integer client : parent.keySet()) {
+            Integer root = find(parent, client);
+            List<Integer> members = groups.get(root);
+            if (members == null) {
+                members = new ArrayList<Integer>();
+                groups.put(root, members);
+            }
+            members.add(client);
+        }
+
+        Map<Integer, Short> ids = new HashMap<Integer, Short>();
+        Map<Integer, Integer> gameSizes = new HashMap<Integer, Integer>();
+        Map<Integer, DatagramChannel> sockets = new HashMap<Integer, DatagramChannel>();
+        Map<Integer, InetSocketAddress> targets = new HashMap<Integer, InetSocketAddress>();
+        Selector selector = Selector.open();
+
+        for (List<Integer> game : groups.values()) {
+            // splitting a group would drop everything between the parts,
+            // better leave it out and say so
+            if (game.size() > GameSession.MAX_CLIENTS) {
+                System.out.println("Skipping " + game.size() + " clients that talked to each other, a game has at most " + GameSession.MAX_CLIENTS + ". Ids reused over a long capture look like this.");
+                continue;
+            }
+            // a client that only sent broadcasts had no game we can request
+            if (game.size() < 2) {
+                continue;
+            }
+
+            int gamePort = port;
+            short[] assigned;
+            HttpURLConnection con = (HttpURLConnection)new URL("http://" + host + ":" + port + "/request?clients=" + game.size()).openConnection();
+            if (con.getResponseCode() != 200) {
+                throw new IOException("Tunnel refused a game of " + game.size() + " with status " + con.getResponseCode());
+            }
+            if (con.getHeaderField("X-Tunnel-Port") != null) {
+                gamePort = Integer.parseInt(con.getHeaderField("X-Tunnel-Port"));
+            }
+            assigned = parseIds(con.getInputStream());
+
+            for (int i = 0; i < game.size(); i++) {
+                DatagramChannel socket = DatagramChannel.open();
+                socket.bind(new InetSocketAddress(0));
+                socket.configureBlocking(false);
+                socket.register(selector, SelectionKey.OP_READ);
+                ids.put(game.get(i), assigned[i]);
+                gameSizes.put(game.get(i), game.size());
+                sockets.put(game.get(i), socket);
+                targets.put(game.get(i), new InetSocketAddress(host, gamePort));
+            }
+        }
+
+        System.out.println(packets.size() + " packets between " + ids.size() + " clients to replay.");
+
+        Thread receiver = new Thread(new Receiver(selector), "Replay-Receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        // let the tunnel learn every address first, these aren't counted
+        ByteBuffer buf = ByteBuffer.allocateDirect(4096);
+        for (Integer client : ids.keySet()) {
+            buf.clear();
+            buf.putShort(ids.get(client));
+            buf.putShort(ids.get(client));
+            buf.flip();
+            sockets.get(client).send(buf, targets.get(client));
+        }
+        Thread.sleep(500);
+
+        long sent = 0;
+        long skipped = 0;
+        long expected = 0;
+        long first = packets.get(0).time;
+        long start = System.nanoTime();
+        received.set(0);
+
+        for (Packet p : packets) {
+            Short from = ids.get(p.from);
+            Short to = (isBroadcast(p) ? Short.valueOf(GameSession.BROADCAST) : ids.get(p.to));
+            if (from == null || to == null) {
+                skipped++;
+                continue;
+            }
+
+            if (rate > 0) {
+                long wait = start + (long)((p.time - first) / rate) - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+
+            buf.clear();
+            buf.putShort(from);
+            buf.putShort(to);
+            if (p.payload.length > 4) {
+                buf.put(p.payload, 4, p.payload.length - 4);
+            }
+            while (buf.position() < p.length) {
+                buf.put((byte)0);
+            }
+            buf.flip();
+            sockets.get(p.from).send(buf, targets.get(p.from));
+            sent++;
+            expected += (isBroadcast(p) ? gameSizes.get(p.from) - 1 : 1);
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        // give packets in flight a moment
+        Thread.sleep(500);
+        running = false;
+
+        long r = received.get();
+        double seconds = elapsed / 1e9;
+        double captured = (packets.get(packets.size() - 1).time - first) / 1e9;
+        System.out.println(String.format("Captured : %.1f s", captured));
+        System.out.println(String.format("Replayed : %.1f s", seconds));
+        System.out.println(String.format("Sent     : %d packets, %.0f pps", sent, sent / seconds));
+        System.out.println(String.format("Skipped  : %d packets of clients not in a replayed game", skipped));
+        System.out.println(String.format("Received : %d packets, %.0f pps", r, r / seconds));
+        System.out.println(String.format("Dropped  : %.3f %%", expected == 0 ? 0.0 : 100.0 * (expected - r) / expected));
+        System.exit(0);
+    }
+
+    /**
+     * Reads the complete routed packets of a capture in the order they
+     * were recorded, every relay has its own sequence so the regions are
+     * merged by time.
+     */
+    private static List<Packet> read(String path) throws IOException {
+        List<Packet> packets = new ArrayList<Packet>();
+        RandomAccessFile f = new RandomAccessFile(path, "r");
+        try {
+            MappedByteBuffer in = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+            if (in.getInt(0) != CaptureRing.MAGIC || in.getInt(4) != CaptureRing.VERSION) {
+                throw new IOException(path + " is not a capture of this version");
+            }
+
+            int slots = in.getInt(8) * in.getInt(20);
+            int slotSize = in.getInt(12);
+
+            for (int i = 0; i < slots; i++) {
+                int at = CaptureRing.HEADER + i * slotSize;
+                long seq = in.getLong(at);
+                if (seq == 0 || in.get(at + 22) == 0) {
+                    continue;
+                }
+
+                Packet p = new Packet();
+                p.seq = seq;
+                p.time = in.getLong(at + 8);
+                int portIndex = in.get(at + 23) & 0xFF;
+                p.from = (portIndex << 16) | (in.getShort(at + 16) & 0xFFFF);
+                p.to = (portIndex << 16) | (in.getShort(at + 18) & 0xFFFF);
+                p.length = Math.min(in.getShort(at + 20) & 0xFFFF, 4096);
+                p.payload = new byte[in.getShort(at + 30) & 0xFFFF];
+                for (int j = 0; j < p.payload.length; j++) {
+                    p.payload[j] = in.get(at + CaptureRing.SLOT_HEADER + j);
+                }
+                packets.add(p);
+            }
+        } finally {
+            f.close();
+        }
+
+        Packet[] sorted = packets.toArray(new Packet[packets.size()]);
+        Arrays.sort(sorted, new Comparator<Packet>() {
+            @Override
+            public int compare(Packet a, Packet b) {
+                int c = Long.compare(a.time, b.time);
+                return c != 0 ? c : Long.compare(a.seq, b.seq);
+            }
+        });
+        return Arrays.asList(sorted);
+    }
+
+    private static boolean isBroadcast(Packet p) {
+        return (short)p.to == GameSession.BROADCAST;
+    }
+
+    private static Integer find(Map<Integer, Integer> parent, Integer client) {
+        Integer p = parent.get(client);
+        if (p == null) {
+            parent.put(client, client);
+            return client;
+        }
+        if (p.equals(client)) {
+            return client;
+        }
+        Integer root = find(parent, p);
+        parent.put(client, root);
+        return root;
+    }
+
+    private static void union(Map<Integer, Integer> parent, int a, int b) {
+        Integer ra = find(parent, a);
+        Integer rb = find(parent, b);
+        if (!ra.equals(rb)) {
+            parent.put(ra, rb);
+        }
+    }
+
+    private static short[] parseIds(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            sb.append((char)c);
+        }
+        in.close();
+
+        String[] parts = sb.toString().replace("[", "").replace("]", "").split(",");
+        short[] ids = new short[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            ids[i] = Short.parseShort(parts[i].trim());
+        }
+        return ids;
+    }
+
+    private static class Receiver implements Runnable {
+        private final Selector selector;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(4096);
+
+        Receiver(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    if (selector.select(100) == 0) {
+                        continue;
+                    }
+
+                    for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+                        DatagramChannel chan = (DatagramChannel)i.next().channel();
+                        i.remove();
+
+                        buf.clear();
+                        while (chan.receive(buf) != null) {
+                            received.incrementAndGet();
+                            buf.clear();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Fixed set of direct buffers carved out of one off-heap block. Datagrams
+ * received into and sent from direct buffers skip the temporary copy the
+ * JDK makes for heap buffers.
+ *
+ * A pool belongs to one relay worker and is not thread safe, the counters
+ * can be read from any thread.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int capacity;
+    private final ArrayDeque<ByteBuffer> free;
+
+    private volatile int inUse = 0;
+    private volatile int peak = 0;
+    private volatile long exhausted = 0;
+
+    public BufferPool(int capacity, int bufferSize) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.free = new ArrayDeque<ByteBuffer>(capacity);
+
+        ByteBuffer memory = ByteBuffer.allocateDirect(capacity * bufferSize);
+        for (int i = 0; i < capacity; i++) {
+            memory.limit((i + 1) * bufferSize);
+            memory.position(i * bufferSize);
+            free.add(memory.slice());
+        }
+    }
+
+    /**
+     * @return a cleared buffer or null if the pool is exhausted
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.pollFirst();
+
+        if (buf == null) {
+            exhausted++;
+            return null;
+        }
+
+        buf.clear();
+        int n = inUse + 1;
+        inUse = n;
+        if (n > peak) {
+            peak = n;
+        }
+        return buf;
+    }
+
+    public void release(ByteBuffer buf) {
+        free.addFirst(buf);
+        inUse--;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getInUse() {
+        return inUse;
+    }
+
+    public int getPeak() {
+        return peak;
+    }
+
+    public long getExhausted() {
+        return exhausted;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records what the relays see into a memory mapped ring file. Every relay
+ * has a region of the ring to itself with its own sequence, so recording
+ * shares nothing between the relay threads. A region overwrites its
+ * oldest packets once it has wrapped. Every slot ends with its sequence
+ * number written last so a reader can tell the complete ones apart, the
+ * regions are merged back in order by their timestamps.
+ *
+ * Header: int magic, int version, int slots per region, int slot size,
+ * int payload bytes kept, int regions.
+ *
+ * Slot: long sequence + 1, long nanoseconds since the capture started,
+ * short header from, short header to, short length, byte routed, byte
+ * tunnel port index, int IPv4 source, short source port, short payload
+ * bytes kept and the payload.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class CaptureRing {
+
+    public static final int MAGIC = 0x434E4352;
+    public static final int VERSION = 2;
+    public static final int HEADER = 64;
+    public static final int SLOT_HEADER = 32;
+
+    // the whole ring, two million packets at headers only
+    public static final long SIZE = 64L * 1024 * 1024;
+
+    private final MappedByteBuffer map;
+    private final int regions;
+    private final int slots;
+    private final int slotSize;
+    private final int payload;
+    private final long start = System.nanoTime();
+    private int writers = 0;
+
+    /**
+     * One relay's way into the ring, it has its own region and view of the
+     * mapping so recording needs no locking, atomics or allocation.
+     */
+    public class Writer {
+        private final ByteBuffer view = map.duplicate();
+        private final int base;
+        private long next = 0;
+
+        Writer(int region) {
+            this.base = HEADER + region * slots * slotSize;
+        }
+
+        /**
+         * Records a packet, buf has to be at the start of it and is left
+         * that way.
+         */
+        public void record(ByteBuffer buf, InetSocketAddress from, int port, boolean routed) {
+            long seq = next++;
+            int at = base + (int)(seq % slots) * slotSize;
+            int length = buf.remaining();
+            int kept = Math.min(length, payload);
+
+            // mark the slot incomplete while it is being written
+            view.putLong(at, 0);
+            view.putLong(at + 8, System.nanoTime() - start);
+            view.putShort(at + 16, length >= 2 ? buf.getShort(buf.position()) : 0);
+            view.putShort(at + 18, length >= 4 ? buf.getShort(buf.position() + 2) : 0);
+            view.putShort(at + 20, (short)length);
+            view.put(at + 22, (byte)(routed ? 1 : 0));
+            view.put(at + 23, (byte)port);
+            view.putInt(at + 24, (int)Client.pack(from.getAddress()));
+            view.putShort(at + 28, (short)from.getPort());
+            view.putShort(at + 30, (short)kept);
+
+            if (kept > 0) {
+                int limit = buf.limit();
+                int position = buf.position();
+                buf.limit(position + kept);
+                view.clear();
+                view.position(at + SLOT_HEADER);
+                view.put(buf);
+                buf.limit(limit);
+                buf.position(position);
+            }
+
+            view.putLong(at, seq + 1);
+        }
+    }
+
+    /**
+     * Creates the ring file, anything in it before is lost.
+     *
+     * @param payload bytes of every packet to keep, zero for headers only
+     * @param regions how many writers will record into it
+     */
+    public CaptureRing(String path, int payload, int regions) throws IOException {
+        this.payload = Math.max(Math.min(payload, 4096), 0);
+        this.slotSize = (SLOT_HEADER + this.payload + 7) & ~7;
+        this.regions = Math.max(regions, 1);
+        this.slots = (int)((SIZE - HEADER) / slotSize / this.regions);
+
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            file.setLength(0);
+            file.setLength(HEADER + (long)this.regions * slots * slotSize);
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        } finally {
+            file.close();
+        }
+
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(8, slots);
+        map.putInt(12, slotSize);
+        map.putInt(16, this.payload);
+        map.putInt(20, this.regions);
+
+        // fault every page in now, not on the relay threads later
+        for (int i = HEADER; i < map.capacity(); i += 4096) {
+            map.put(i, (byte)0);
+        }
+    }
+
+    /**
+     * Hands out the next free region, one for every relay.
+     */
+    public synchronized Writer writer() {
+        if (writers == regions) {
+            throw new IllegalStateException("All " + regions + " capture regions are taken");
+        }
+        return new Writer(writers++);
+    }
+
+    /**
+     * @return packets the whole ring holds
+     */
+    public int getSlots() {
+        return slots * regions;
+    }
+}
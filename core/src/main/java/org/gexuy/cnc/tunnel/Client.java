@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class Client {
+
+    /**
+     * The learned address together with its packed form, swapped as one so
+     * they can't disagree.
+     */
+    private static final class Address {
+        final InetSocketAddress socket;
+        final long packed;
+
+        Address(InetSocketAddress socket) {
+            this.socket = socket;
+            this.packed = pack(socket.getAddress());
+        }
+    }
+
+    private static final AtomicReferenceFieldUpdater<Client, Address> ADDRESS =
+        AtomicReferenceFieldUpdater.newUpdater(Client.class, Address.class, "address");
+
+    private short id;
+    private volatile Address address;
+    private volatile long lastPacket;
+    private GameSession session;
+    private DatagramChannel channel;
+    private int port;
+    private volatile boolean connected;
+
+    public Client(short id, GameSession session) {
+        this.id = id;
+        this.lastPacket = System.currentTimeMillis();
+        this.session = session;
+    }
+
+    public short getId() {
+        return this.id;
+    }
+
+    public GameSession getSession() {
+        return session;
+    }
+
+    /**
+     * Gives the client a port of its own, only done before the client is
+     * published.
+     */
+    void setChannel(DatagramChannel channel, int port) {
+        this.channel = channel;
+        this.port = port;
+    }
+
+    /**
+     * @return the channel of the client's own port or null if it has none
+     */
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return true once the own channel is connected to the client and
+     *         packets to it go out from there
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    void setConnected() {
+        connected = true;
+    }
+
+    public void setAddress(InetSocketAddress newAddress) {
+        address = new Address(newAddress);
+    }
+
+    /**
+     * Replaces the address only if it still is the expected one, so the
+     * relay workers racing on the first packets of a client agree on who
+     * it is.
+     *
+     * @return false if someone else changed the address first
+     */
+    public boolean compareAndSetAddress(InetSocketAddress expect, InetSocketAddress update) {
+        Address current = address;
+        if ((current == null ? null : current.socket) != expect) {
+            return false;
+        }
+        return ADDRESS.compareAndSet(this, current, new Address(update));
+    }
+
+    /**
+     * Checks that a packet came from the IP this client was first seen
+     * from, the port may change.
+     */
+    public boolean isFrom(InetSocketAddress from) {
+        Address current = address;
+        long packed = pack(from.getAddress());
+        if (packed != 0) {
+            return packed == current.packed;
+        }
+        return from.getAddress().equals(current.socket.getAddress());
+    }
+
+    /**
+     * Packs an IPv4 address into a long like HostRateLimiter does, zero
+     * for anything else.
+     */
+    static long pack(InetAddress address) {
+        // an Inet4Address hashes to its own address, getAddress() would
+        // hand out a copy on every packet
+        if (address instanceof Inet4Address) {
+            return 0xFFFF00000000L | (address.hashCode() & 0xFFFFFFFFL);
+        }
+        return 0;
+    }
+
+    public InetSocketAddress getAddress() {
+        Address current = address;
+        return current == null ? null : current.socket;
+    }
+
+    public void setLastPacket(long lastPacketReceived) {
+        // the relay clock only moves once per batch, skip redundant writes
+        if (lastPacket != lastPacketReceived) {
+            lastPacket = lastPacketReceived;
+        }
+    }
+
+    public long getLastPacket() {
+        return lastPacket;
+    }
+    
+}
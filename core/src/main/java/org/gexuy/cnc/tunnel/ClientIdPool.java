@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out random client ids from a 65536 bit set. Allocating probes from
+ * a random position and claims a free bit with compareAndSet, so there is
+ * nothing to build up front and no locking between request handlers and
+ * the timeout sweep.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class ClientIdPool {
+
+    private static final int WORDS = ClientTable.SIZE / 64;
+
+    private final AtomicLongArray used = new AtomicLongArray(WORDS);
+
+    /**
+     * @param reserved ids that are never handed out
+     */
+    public ClientIdPool(short... reserved) {
+        for (short id : reserved) {
+            claim(id);
+        }
+    }
+
+    /**
+     * @return a free id or -1 if every id is in use
+     */
+    public int allocate() {
+        int start = ThreadLocalRandom.current().nextInt(ClientTable.SIZE);
+        int rotate = start & 63;
+
+        for (int n = 0; n < WORDS; n++) {
+            int w = ((start >>> 6) + n) & (WORDS - 1);
+            long word;
+
+            while ((word = used.get(w)) != -1L) {
+                // rotate so that we don't always pick the lowest free bit
+                int bit = (Long.numberOfTrailingZeros(Long.rotateRight(~word, rotate)) + rotate) & 63;
+                if (used.compareAndSet(w, word, word | (1L << bit))) {
+                    return (w << 6) | bit;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return true if the id is handed out or reserved, the relay checks
+     *         this before looking at the client table
+     */
+    public boolean isAllocated(short id) {
+        int index = id & 0xFFFF;
+        return (used.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    public void release(short id) {
+        int index = id & 0xFFFF;
+        int w = index >>> 6;
+        long mask = 1L << index;
+        long word;
+
+        do {
+            word = used.get(w);
+        } while (!used.compareAndSet(w, word, word & ~mask));
+    }
+
+    /**
+     * Takes a specific id, used for reserved ids and when restoring games.
+     *
+     * @return false if the id was already in use
+     */
+    public boolean claim(short id) {
+        int index = id & 0xFFFF;
+        int w = index >>> 6;
+        long mask = 1L << index;
+        long word;
+
+        do {
+            word = used.get(w);
+            if ((word & mask) != 0) {
+                return false;
+            }
+        } while (!used.compareAndSet(w, word, word | mask));
+
+        return true;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Clients indexed directly by their 16 bit id. The relay reads this for
+ * every packet so a lookup is a single volatile array read, no boxing and
+ * no hashing.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class ClientTable {
+
+    public static final int SIZE = 65536;
+
+    private final AtomicReferenceArray<Client> slots = new AtomicReferenceArray<Client>(SIZE);
+    private final AtomicInteger size = new AtomicInteger();
+
+    public Client get(short id) {
+        return slots.get(id & 0xFFFF);
+    }
+
+    /**
+     * Publishes a client in its slot.
+     *
+     * @return false if the slot was already taken
+     */
+    public boolean add(Client client) {
+        if (slots.compareAndSet(client.getId() & 0xFFFF, null, client)) {
+            size.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the client if it still owns its slot.
+     */
+    public boolean remove(Client client) {
+        if (slots.compareAndSet(client.getId() & 0xFFFF, client, null)) {
+            size.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+}
@@ -1,10 +1,10 @@
 /*
  * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
- * 
+ *
  * Permission to use, copy, modify, and distribute this software for any
  * purpose with or without fee is hereby granted, provided that the above
  * copyright notice and this permission notice appear in all copies.
- * 
+ *
  * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
  * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
  * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
@@ -15,48 +15,34 @@
  */
 package org.gexuy.cnc.tunnel;
 
-import java.net.InetSocketAddress;
-import java.util.List;
-
 /**
+ * Cheap wall clock for the packet path. The relay workers refresh it once
+ * per batch and everything else reads the cached value.
  *
  * @author Toni Spets <toni.spets@iki.fi>
  */
-public class Client {
-
-    private short id;
-    private InetSocketAddress address;
-    private long lastPacket;
-    private List<Short> friends;
-
-    public Client(short id, List<Short> friends) { 
-        this.id = id;
-        this.lastPacket = System.currentTimeMillis();
-        this.friends = friends;
-    }
+public final class Clock {
 
-    public short getId() {
-        return this.id;
-    }
-
-    public boolean isKnownClient(short otherId) {
-        return friends.contains(otherId);
-    }
-
-    public void setAddress(InetSocketAddress newAddress) {
-        address = newAddress;
-    }
+    private static volatile long now = System.currentTimeMillis();
 
-    public InetSocketAddress getAddress() {
-        return address;
+    private Clock() {
     }
 
-    public void setLastPacket(long lastPacketReceived) {
-        lastPacket = lastPacketReceived;
+    /**
+     * Reads the system clock and caches it.
+     *
+     * @return the current time in milliseconds
+     */
+    public static long update() {
+        long t = System.currentTimeMillis();
+        now = t;
+        return t;
     }
 
-    public long getLastPacket() {
-        return lastPacket;
+    /**
+     * @return the time of the last update
+     */
+    public static long now() {
+        return now;
     }
-    
 }
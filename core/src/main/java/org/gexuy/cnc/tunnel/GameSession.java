@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The clients reserved by one /request call. The session is the route
+ * table of the game: a packet may only go from one member to another and
+ * the receiving member also carries the address to send to.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class GameSession {
+
+    /**
+     * A destination id meaning every other member of the sender's game, it
+     * is never handed out to a client. Sent from, it marks a ping.
+     */
+    public static final short BROADCAST = Short.MAX_VALUE;
+
+    /**
+     * The most clients a game can have.
+     */
+    public static final int MAX_CLIENTS = 8;
+
+    private static final AtomicLong nextId = new AtomicLong();
+
+    private final long id;
+    private final long created;
+    private final String requestAddress;
+    private final TunnelPort port;
+    private final short[] ids;
+    private final AtomicReferenceArray<Client> members;
+    private final AtomicInteger live;
+    private final LongAdder packets = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private volatile int stateSlot = -1;
+
+    public GameSession(short[] ids, String requestAddress, TunnelPort port) {
+        this(ids, requestAddress, port, System.currentTimeMillis());
+    }
+
+    /**
+     * @param created when the game was started, earlier than now for games
+     *        restored from a state file
+     */
+    public GameSession(short[] ids, String requestAddress, TunnelPort port, long created) {
+        this.id = nextId.incrementAndGet();
+        this.created = created;
+        this.requestAddress = requestAddress;
+        this.port = port;
+        this.ids = ids;
+        this.members = new AtomicReferenceArray<Client>(ids.length);
+        this.live = new AtomicInteger(ids.length);
+
+        for (int i = 0; i < ids.length; i++) {
+            members.set(i, new Client(ids[i], this));
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public String getRequestAddress() {
+        return requestAddress;
+    }
+
+    /**
+     * @return the port whose ids the members have
+     */
+    public TunnelPort getPort() {
+        return port;
+    }
+
+    public void forwarded(int length) {
+        packets.increment();
+        bytes.add(length);
+    }
+
+    public long getPackets() {
+        return packets.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return the member in the given slot or null if it has been removed
+     */
+    public Client getClient(int slot) {
+        return members.get(slot);
+    }
+
+    /**
+     * @return the slot of the member or -1 if it is not one
+     */
+    public int indexOf(Client client) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == client.getId()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the record of this game in the state file or -1 if it has
+     *         none
+     */
+    public int getStateSlot() {
+        return stateSlot;
+    }
+
+    public void setStateSlot(int stateSlot) {
+        this.stateSlot = stateSlot;
+    }
+
+    /**
+     * Finds the destination of a packet inside this game.
+     *
+     * @return the member with the given id or null if there is no such
+     *         member (anymore)
+     */
+    public Client route(short to) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == to) {
+                return members.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes a timed out member out of the game.
+     *
+     * @return true if this was the last member and the game is over
+     */
+    public boolean remove(Client client) {
+        for (int i = 0; i < ids.length; i++) {
+            if (members.compareAndSet(i, client, null)) {
+                return live.decrementAndGet() == 0;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket per requesting host. A host can start burst games at once
+ * and gets rate new ones per minute after that.
+ *
+ * Every bucket is a single long holding the time at which it would be full
+ * again, taking a token is a compareAndSet that moves it forward. The
+ * refill happens implicitly by comparing with the current time. A bucket
+ * that is full again is no different from no bucket at all, so it is
+ * dropped from the table by the timing wheel at that time.
+ *
+ * IPv6 hosts are limited per /64, anyone with a single address usually
+ * has the whole /64 to pick from. When the table is full anyway the
+ * buckets closest to full are evicted, losing those costs the least.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class HostRateLimiter {
+
+    private static final int MAX_HOSTS = 65536;
+    // share of the table evicted at once when it is full
+    private static final int EVICT = MAX_HOSTS / 8;
+
+    /**
+     * IPv4 and IPv6 addresses packed into two longs, IPv4 is stored in its
+     * IPv4 mapped IPv6 form and IPv6 is cut down to its /64.
+     */
+    static final class HostKey {
+        final long hi;
+        final long lo;
+
+        HostKey(InetAddress address) {
+            byte[] b = address.getAddress();
+            if (b.length == 4) {
+                hi = 0;
+                lo = 0xFFFF00000000L | ((b[0] & 0xFFL) << 24) | ((b[1] & 0xFFL) << 16) | ((b[2] & 0xFFL) << 8) | (b[3] & 0xFFL);
+            } else {
+                long h = 0;
+                for (int i = 0; i < 8; i++) {
+                    h = (h << 8) | (b[i] & 0xFFL);
+                }
+                hi = h;
+                lo = 0;
+            }
+        }
+
+        InetAddress toAddress() {
+            byte[] b = new byte[16];
+            for (int i = 0; i < 8; i++) {
+                b[i] = (byte)(hi >>> (56 - i * 8));
+                b[i + 8] = (byte)(lo >>> (56 - i * 8));
+            }
+            try {
+                // the IPv4 mapped form comes back as an Inet4Address
+                return InetAddress.getByAddress(b);
+            } catch (UnknownHostException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            String address = toAddress().getHostAddress();
+            return hi == 0 ? address : address + "/64";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof HostKey)) {
+                return false;
+            }
+            HostKey k = (HostKey)o;
+            return hi == k.hi && lo == k.lo;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = hi * 31 + lo;
+            return (int)(h ^ (h >>> 32));
+        }
+    }
+
+    // marks a bucket that is being dropped, nobody can take from it anymore
+    private static final long DEAD = Long.MIN_VALUE;
+
+    private class Bucket extends TimingWheel.Entry {
+        final HostKey key;
+        // the time when the bucket is full again, DEAD once dropped
+        final AtomicLong full;
+
+        Bucket(HostKey key, long now) {
+            this.key = key;
+            this.full = new AtomicLong(now);
+        }
+
+        @Override
+        protected long expire(long now) {
+            while (true) {
+                long f = full.get();
+                if (f == DEAD) {
+                    return 0;
+                }
+                if (f > now) {
+                    return f;
+                }
+                // killing it first means a token taken meanwhile makes this
+                // fail instead of being lost with the bucket
+                if (drop(f)) {
+                    return 0;
+                }
+            }
+        }
+
+        boolean drop(long f) {
+            if (!full.compareAndSet(f, DEAD)) {
+                return false;
+            }
+            buckets.remove(key, this);
+            return true;
+        }
+    }
+
+    /**
+     * How a host stands at one moment, for the status page.
+     */
+    public static final class Host {
+        public final String address;
+        // games it can start right now
+        public final int available;
+        // milliseconds until it is back at the full burst
+        public final long fullIn;
+
+        Host(String address, int available, long fullIn) {
+            this.address = address;
+            this.available = available;
+            this.fullIn = fullIn;
+        }
+    }
+
+    private final int burst;
+    private final long interval;
+    private final TimingWheel wheel;
+    private final ConcurrentHashMap<HostKey, Bucket> buckets = new ConcurrentHashMap<HostKey, Bucket>();
+
+    /**
+     * @param burst games a host can start at once
+     * @param rate games per minute a host gets back
+     * @param wheel used to drop buckets once they are full again
+     */
+    public HostRateLimiter(int burst, int rate, TimingWheel wheel) {
+        this.burst = burst;
+        this.interval = 60000 / Math.max(rate, 1);
+        this.wheel = wheel;
+    }
+
+    /**
+     * Takes a token for the host.
+     *
+     * @return false if the host is over its limit
+     */
+    public boolean acquire(InetAddress address, long now) {
+        HostKey key = new HostKey(address);
+
+        while (true) {
+            Bucket bucket = lookup(key, now);
+
+            long limit = burst * interval;
+            while (true) {
+                long f = bucket.full.get();
+                if (f == DEAD) {
+                    // dropped under us, the next lookup gets a fresh one
+                    buckets.remove(key, bucket);
+                    break;
+                }
+                long next = Math.max(f, now) + interval;
+                if (next - now > limit) {
+                    return false;
+                }
+                if (bucket.full.compareAndSet(f, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private Bucket lookup(HostKey key, long now) {
+        Bucket bucket = buckets.get(key);
+
+        if (bucket == null) {
+            if (buckets.size() >= MAX_HOSTS) {
+                evict(now);
+            }
+
+            Bucket created = new Bucket(key, now);
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+                wheel.schedule(created, now + interval);
+            }
+        }
+
+        return bucket;
+    }
+
+    /**
+     * Gives a token back when the game could not be started after all.
+     */
+    public void refund(InetAddress address) {
+        Bucket bucket = buckets.get(new HostKey(address));
+        if (bucket != null) {
+            while (true) {
+                long f = bucket.full.get();
+                if (f == DEAD || bucket.full.compareAndSet(f, f - interval)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the buckets closest to full. Sorting the whole table is not
+     * cheap but it only happens once every EVICT new hosts.
+     */
+    private synchronized void evict(long now) {
+        if (buckets.size() < MAX_HOSTS) {
+            return;
+        }
+
+        long[] full = new long[buckets.size() + 16];
+        int n = 0;
+        for (Bucket bucket : buckets.values()) {
+            if (n == full.length) {
+                break;
+            }
+            full[n++] = Math.max(bucket.full.get(), now);
+        }
+        Arrays.sort(full, 0, n);
+        long threshold = full[Math.min(EVICT, n) - 1];
+
+        int evicted = 0;
+        for (Bucket bucket : buckets.values()) {
+            if (evicted >= EVICT) {
+                break;
+            }
+            long f = bucket.full.get();
+            if (f != DEAD && f <= threshold && bucket.drop(f)) {
+                evicted++;
+            }
+        }
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * @return the hosts that have used some of their burst
+     */
+    public List<Host> getHosts(long now) {
+        List<Host> hosts = new ArrayList<Host>();
+        for (Bucket bucket : buckets.values()) {
+            long f = bucket.full.get();
+            long fullIn = f - now;
+            if (f != DEAD && fullIn > 0) {
+                int used = (int)((fullIn + interval - 1) / interval);
+                hosts.add(new Host(bucket.key.toString(), Math.max(burst - used, 0), fullIn));
+            }
+        }
+        return hosts;
+    }
+}
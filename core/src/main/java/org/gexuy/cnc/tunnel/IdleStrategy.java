@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * How a relay worker waits for traffic. Blocking in the selector costs the
+ * least CPU, spinning gives the lowest latency. The strategies keep no state
+ * so one instance can be shared by all workers.
+ *
+ * Ready keys are handed to an action instead of going through the selected
+ * key set. On Java 11 and later that uses Selector.select(Consumer) which
+ * allocates nothing, the selected key set costs a set entry and an iterator
+ * on every wakeup.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public abstract class IdleStrategy {
+
+    private static final MethodHandle SELECT = lookup("select", Consumer.class, long.class);
+    private static final MethodHandle SELECT_NOW = lookup("selectNow", Consumer.class);
+
+    /**
+     * Waits until some channel may be ready and runs the action for
+     * every ready key.
+     *
+     * @param idleCount number of passes in a row that found no packets
+     * @return the number of ready keys
+     */
+    public abstract int select(Selector selector, Consumer<SelectionKey> action, int idleCount) throws IOException;
+
+    private static MethodHandle lookup(String name, Class<?>... parameterTypes) {
+        try {
+            return MethodHandles.publicLookup().unreflect(Selector.class.getMethod(name, parameterTypes));
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Blocks for up to timeout milliseconds, zero blocks until a key is
+     * ready.
+     */
+    protected static int selectReady(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException {
+        if (SELECT == null) {
+            return process(selector, action, selector.select(timeout));
+        }
+
+        try {
+            return (int)SELECT.invokeExact(selector, action, timeout);
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IOException(e);
+        }
+    }
+
+    protected static int selectReadyNow(Selector selector, Consumer<SelectionKey> action) throws IOException {
+        if (SELECT_NOW == null) {
+            return process(selector, action, selector.selectNow());
+        }
+
+        try {
+            return (int)SELECT_NOW.invokeExact(selector, action);
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IOException(e);
+        }
+    }
+
+    // Java 8 has no select(Consumer), go through the selected key set
+    private static int process(Selector selector, Consumer<SelectionKey> action, int ready) {
+        if (ready > 0) {
+            for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+                SelectionKey k = i.next();
+                i.remove();
+                action.accept(k);
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Parses the -idle argument: block, timeout:&lt;ms&gt;, spin or backoff.
+     */
+    public static IdleStrategy forName(String name) {
+        if (name.equals("block")) {
+            return new Block();
+        } else if (name.startsWith("timeout:")) {
+            return new Timeout(Math.max(Long.parseLong(name.substring(8)), 1));
+        } else if (name.equals("spin")) {
+            return new Spin();
+        } else if (name.equals("backoff")) {
+            return new Backoff(100, 10, 1000000);
+        }
+        throw new IllegalArgumentException("Unknown idle strategy: " + name);
+    }
+
+    public static class Block extends IdleStrategy {
+        @Override
+        public int select(Selector selector, Consumer<SelectionKey> action, int idleCount) throws IOException {
+            return selectReady(selector, action, 0);
+        }
+
+        @Override
+        public String toString() {
+            return "block";
+        }
+    }
+
+    public static class Timeout extends IdleStrategy {
+        private final long timeout;
+
+        public Timeout(long timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int select(Selector selector, Consumer<SelectionKey> action, int idleCount) throws IOException {
+            return selectReady(selector, action, timeout);
+        }
+
+        @Override
+        public String toString() {
+            return "timeout:" + timeout;
+        }
+    }
+
+    public static class Spin extends IdleStrategy {
+        @Override
+        public int select(Selector selector, Consumer<SelectionKey> action, int idleCount) throws IOException {
+            return selectReadyNow(selector, action);
+        }
+
+        @Override
+        public String toString() {
+            return "spin";
+        }
+    }
+
+    /**
+     * Spins for a while, then yields and finally parks for up to
+     * maxParkNanos, doubling the park time on every empty pass.
+     */
+    public static class Backoff extends IdleStrategy {
+        private final int spins;
+        private final int yields;
+        private final long maxParkNanos;
+
+        public Backoff(int spins, int yields, long maxParkNanos) {
+            this.spins = spins;
+            this.yields = yields;
+            this.maxParkNanos = maxParkNanos;
+        }
+
+        @Override
+        public int select(Selector selector, Consumer<SelectionKey> action, int idleCount) throws IOException {
+            int ready = selectReadyNow(selector, action);
+
+            if (ready == 0 && idleCount >= spins) {
+                if (idleCount < spins + yields) {
+                    Thread.yield();
+                } else {
+                    int shift = Math.min(idleCount - spins - yields, 20);
+                    LockSupport.parkNanos(Math.min(1000L << shift, maxParkNanos));
+                }
+            }
+
+            return ready;
+        }
+
+        @Override
+        public String toString() {
+            return "backoff";
+        }
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class Main {
+
+    static final TunnelLog logger = new TunnelLog(8192);
+    static final Metrics metrics = new Metrics(logger);
+    static final List<TunnelListener> listeners = new CopyOnWriteArrayList<TunnelListener>();
+    static TunnelController controller = null;
+    static Relay[] relays = null;
+
+    // -name <str>          Custom name for the tunnel
+    // -maxclients <num>    Maximum number of ports to allocate
+    // -password <num>      Usage password
+    // -port <num>          The port games are routed at
+    // -masterpw <str>      Optional password to send to master when registering
+    // -nomaster            Don't register to master
+    // -logfile <str>       Log everything to this file
+    // -headless            Don't start up the GUI, only used by the gui jar
+    // -iplimit <num>       Games a host can start at once, 0 to disable
+    // -iprate <num>        Games per minute a host gets back after that
+    // -maintpw <str>       Enable maintenance mode with password
+    // -workers <num>       Number of packet forwarding threads
+    // -idle <str>          How workers wait: block, timeout:<ms>, spin or backoff
+    // -buffers <num>       Off-heap packet buffers per worker
+    // -httpthreads <num>   HTTP worker threads, 0 for virtual threads where available
+    // -httpbacklog <num>   Pending HTTP connections and queued requests
+    // -loglevel <str>      Minimum level to log: debug, info, warn or error
+    // -logsize <num>       Rotate the log file after this many MiB, 0 to disable
+    // -gameports <from-to> Give every client its own UDP port from this range
+    // -ports <num>         Number of UDP ports from -port on, each with its own client ids
+    // -statefile <str>     Keep the live games in this file and pick them up on restart
+    // -capture <str>       Record every packet into this ring file for replaying
+    // -capturepayload <num> Bytes of every packet to keep in the capture, 0 for headers only
+    // -sendqueue <num>     Packets a worker holds per socket while the kernel's send buffer is full
+    // -droppolicy <str>    What a full send queue drops: oldest or newest
+    // -sourcelimit <num>   Packets per second a source address gets through each worker, 0 to disable (default)
+    // -pinglimit <num>     UDP pings a worker answers per second, 0 to answer none
+
+    protected static String name = "Unnamed CnCNet 5a tunnel";
+    protected static int maxclients = 8;
+    protected static String password = null;
+    protected static int port = 50000;
+    protected static String master = "http://cncnet.org/master-announce";
+    protected static String masterpw = null;
+    protected static boolean nomaster = false;
+    protected static boolean headless = false;
+    protected static int iplimit = 2;
+    protected static int iprate = 2;
+    protected static String logfile = null;
+    protected static String maintpw = null;
+    protected static int workers = 1;
+    protected static IdleStrategy idle = new IdleStrategy.Block();
+    protected static int buffers = 64;
+    protected static int httpthreads = 4;
+    protected static int httpbacklog = 64;
+    protected static TunnelLog.Level loglevel = TunnelLog.Level.INFO;
+    protected static int logsize = 10;
+    protected static int gameportsFrom = 0;
+    protected static int gameportsTo = 0;
+    protected static int ports = 1;
+    protected static String statefile = null;
+    protected static String capture = null;
+    protected static int capturepayload = 0;
+    protected static int sendqueue = Relay.SEND_QUEUE;
+    protected static boolean dropoldest = true;
+    // off unless asked for, players behind one NAT share a source address
+    protected static int sourcelimit = 0;
+    protected static int pinglimit = Relay.PING_LIMIT;
+
+    public static void main(String[] args) {
+        if (parse(args)) {
+            start();
+        }
+    }
+
+    /**
+     * Reads the command line into the settings, returns false when the
+     * tunnel should not be started.
+     */
+    public static boolean parse(String[] args) {
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-name") && i < args.length - 1) {
+                name = args[++i];
+            } else if (args[i].equals("-maxclients") && i < args.length - 1) {
+                maxclients = Math.max(Math.abs(Integer.parseInt(args[++i])), 2);
+            } else if (args[i].equals("-password") && i < args.length - 1) {
+                password = args[++i];
+            } else if (args[i].equals("-port") && i < args.length - 1) {
+                port = Math.max(Math.abs(Integer.parseInt(args[++i])), 1024);
+            } else if (args[i].equals("-master") && i < args.length - 1) {
+                master = args[++i];
+            } else if (args[i].equals("-masterpw") && i < args.length - 1) {
+                masterpw = args[++i];
+            } else if (args[i].equals("-nomaster")) {
+                nomaster = true;
+            } else if (args[i].equals("-logfile") && i < args.length - 1) {
+                logfile = args[++i];
+            } else if (args[i].equals("-headless")) {
+                headless = true;
+            } else if (args[i].equals("-iplimit") && i < args.length - 1) {
+                iplimit = Math.abs(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-iprate") && i < args.length - 1) {
+                iprate = Math.max(Math.abs(Integer.parseInt(args[++i])), 1);
+            } else if (args[i].equals("-maintpw") && i < args.length - 1) {
+                maintpw = args[++i];
+            } else if (args[i].equals("-workers") && i < args.length - 1) {
+                workers = Math.max(Math.abs(Integer.parseInt(args[++i])), 1);
+            } else if (args[i].equals("-idle") && i < args.length - 1) {
+                idle = IdleStrategy.forName(args[++i]);
+            } else if (args[i].equals("-buffers") && i < args.length - 1) {
+                buffers = Math.max(Math.abs(Integer.parseInt(args[++i])), 1);
+            } else if (args[i].equals("-httpthreads") && i < args.length - 1) {
+                httpthreads = Math.abs(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-httpbacklog") && i < args.length - 1) {
+                httpbacklog = Math.max(Math.abs(Integer.parseInt(args[++i])), 1);
+            } else if (args[i].equals("-loglevel") && i < args.length - 1) {
+                loglevel = TunnelLog.Level.valueOf(args[++i].toUpperCase());
+            } else if (args[i].equals("-logsize") && i < args.length - 1) {
+                logsize = Math.abs(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-gameports") && i < args.length - 1) {
+                String[] range = args[++i].split("-");
+                gameportsFrom = Math.max(Math.abs(Integer.parseInt(range[0])), 1024);
+                gameportsTo = Math.min(Math.abs(Integer.parseInt(range[range.length - 1])), 65535);
+            } else if (args[i].equals("-ports") && i < args.length - 1) {
+                ports = Math.max(Math.abs(Integer.parseInt(args[++i])), 1);
+            } else if (args[i].equals("-statefile") && i < args.length - 1) {
+                statefile = args[++i];
+            } else if (args[i].equals("-capture") && i < args.length - 1) {
+                capture = args[++i];
+            } else if (args[i].equals("-capturepayload") && i < args.length - 1) {
+                capturepayload = Math.abs(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-sendqueue") && i < args.length - 1) {
+                sendqueue = Math.abs(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-droppolicy") && i < args.length - 1) {
+                dropoldest = !args[++i].equalsIgnoreCase("newest");
+            } else if (args[i].equals("-sourcelimit") && i < args.length - 1) {
+                sourcelimit = Math.abs(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-pinglimit") && i < args.length - 1) {
+                pinglimit = Math.abs(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-help") || args[i].equals("-h") || args[i].equals("-?") || args[i].equals("/h") || args[i].equals("/?")) {
+                System.out.println("Arguments: [-name <string>] [-maxclients <number>] [-password <string>] [-port <number>] [-master <URL>] [-masterpw <string>] [-nomaster] [-logfile <path>] [-iplimit <number>] [-iprate <number>] [-maintpw <string>] [-workers <number>] [-idle <block|timeout:ms|spin|backoff>] [-buffers <number>] [-httpthreads <number>] [-httpbacklog <number>] [-loglevel <debug|info|warn|error>] [-logsize <MiB>] [-gameports <from-to>] [-ports <number>] [-statefile <path>] [-capture <path>] [-capturepayload <bytes>] [-sendqueue <number>] [-droppolicy <oldest|newest>] [-sourcelimit <number per worker>] [-pinglimit <number>]");
+                return false;
+            } else {
+                Main.log("Unknown parameter: " + args[i]);
+            }
+        }
+
+        return true;
+    }
+
+    public static void addListener(TunnelListener listener) {
+        listeners.add(listener);
+    }
+
+    public static void start() {
+
+        port = Math.min(Math.max(port, 1024), 65535);
+        ports = Math.min(ports, 65536 - port);
+
+        logger.setLevel(loglevel);
+
+        boolean logging = false;
+        if (logfile != null) {
+            try {
+                logger.setFile(logfile, logsize * 1024L * 1024L, 5);
+                logging = true;
+            } catch (IOException e) {
+                // silently ignore errors
+            }
+        }
+
+        Main.log("CnCNet tunnel starting...");
+        Main.log("Name       : " + name);
+        Main.log("Max clients: " + maxclients);
+        if (password != null)
+            Main.log("Password   : " + password);
+        if (ports > 1)
+            Main.log("Ports      : " + port + "-" + (port + ports - 1));
+        else
+            Main.log("Port       : " + port);
+        if (masterpw != null && !nomaster)
+            Main.log("Master pass: " + masterpw);
+        if (nomaster)
+            Main.log("Master server disabled.");
+        else
+            Main.log("Master     : " + master);
+
+        if (maintpw != null)
+            Main.log("Maintenance: " + maintpw);
+
+        if (logging) {
+            Main.log("Logging to " + logfile + (logsize > 0 ? ", rotated every " + logsize + " MiB" : ""));
+        }
+
+        Main.log("Workers    : " + workers + " (idle: " + idle + ")");
+        Main.log("Buffers    : " + buffers + " per worker, " + (workers * buffers * 4) + " KiB off-heap");
+        Main.log("Send queue : " + (sendqueue > 0 ? sendqueue + " packets per socket, dropping the " + (dropoldest ? "oldest" : "newest") : "disabled"));
+
+        if (gameportsFrom > 0 && gameportsTo >= gameportsFrom) {
+            Main.log("Game ports : " + gameportsFrom + "-" + gameportsTo);
+        }
+
+        Main.log("Source limit is " + (sourcelimit > 0 ? sourcelimit + " packets per second per worker, up to " + ((long)sourcelimit * workers) + " over all workers" : "disabled") + ".");
+        Main.log("Host rate limit is " + (iplimit > 0 ? iplimit + " games per ip, " + iprate + " more per minute" : "disabled") + ".");
+
+        try {
+            // every worker gets its own socket on every port if the platform
+            // can share them, otherwise they all poll the same one
+            int[] portNumbers = new int[ports];
+            DatagramChannel[][] channels = new DatagramChannel[workers][ports];
+            for (int p = 0; p < ports; p++) {
+                portNumbers[p] = port + p;
+                channels[0][p] = Relay.open(portNumbers[p], workers > 1);
+                if (channels[0][p] == null) {
+                    if (p == 0) {
+                        Main.log("SO_REUSEPORT not available, workers will share a single socket.");
+                    }
+                    channels[0][p] = Relay.open(portNumbers[p], false);
+                    for (int i = 1; i < workers; i++) {
+                        channels[i][p] = channels[0][p];
+                    }
+                } else {
+                    for (int i = 1; i < workers; i++) {
+                        channels[i][p] = Relay.open(portNumbers[p], true);
+                    }
+                }
+            }
+
+            controller = new TunnelController(name, password, portNumbers, maxclients, nomaster ? null : master, masterpw, iplimit, iprate);
+            if (gameportsFrom > 0 && gameportsTo >= gameportsFrom) {
+                controller.setGamePorts(gameportsFrom, gameportsTo);
+            }
+
+            // the workers have to exist before the first game hands them
+            // its ports
+            relays = new Relay[workers];
+            for (int i = 0; i < workers; i++) {
+                relays[i] = new Relay(controller, channels[i], idle, buffers);
+                relays[i].setSendQueue(sendqueue, dropoldest);
+                relays[i].setSourceLimit(sourcelimit);
+                relays[i].setPingLimit(pinglimit);
+            }
+
+            if (capture != null) {
+                CaptureRing ring = new CaptureRing(capture, capturepayload, workers);
+                for (int i = 0; i < workers; i++) {
+                    relays[i].setCapture(ring);
+                }
+                Main.log("Capturing  : " + capture + ", " + ring.getSlots() + " packets" + (capturepayload > 0 ? " with " + capturepayload + " bytes of payload" : ""));
+            }
+
+            if (statefile != null) {
+                try {
+                    controller.setStateFile(statefile);
+                } catch (IOException e) {
+                    Main.log(TunnelLog.Level.ERROR, "State file " + statefile + " could not be used: " + e.getMessage());
+                }
+            }
+
+            // setup our HTTP server
+            HttpServer server = HttpServer.create(new InetSocketAddress(port), httpbacklog);
+            server.createContext("/request", controller);
+            server.createContext("/status", controller);
+            server.createContext("/status.json", controller);
+            server.createContext("/metrics", metrics);
+            if (maintpw != null) {
+                server.createContext("/maintenance/" + maintpw, controller);
+            }
+            server.setExecutor(createHttpExecutor());
+            server.start();
+
+            new Thread(controller).start();
+
+            for (int i = 1; i < workers; i++) {
+                new Thread(relays[i], "Relay-" + i).start();
+            }
+
+            relays[0].run();
+
+        } catch (Exception e) {
+            Main.log(e.toString());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * A bounded pool for the HTTP handlers. When it is full the server's
+     * dispatcher thread runs the request itself which slows down accepting
+     * new ones. With zero threads we use virtual threads on JDKs that have
+     * them and an unbounded cached pool otherwise.
+     */
+    private static Executor createHttpExecutor() {
+        if (httpthreads == 0) {
+            try {
+                Executor executor = (Executor)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                Main.log("HTTP       : virtual threads");
+                return executor;
+            } catch (Exception e) {
+                Main.log("HTTP       : cached thread pool, virtual threads are not available");
+                return Executors.newCachedThreadPool();
+            }
+        }
+
+        Main.log("HTTP       : " + httpthreads + " threads, backlog " + httpbacklog);
+        return new ThreadPoolExecutor(httpthreads, httpthreads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(httpbacklog), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public static void log(String s) {
+        logger.log(TunnelLog.Level.INFO, s);
+    }
+
+    public static void log(TunnelLog.Level level, String s) {
+        logger.log(level, s);
+    }
+
+    public static boolean isLogging(TunnelLog.Level level) {
+        return logger.isEnabled(level);
+    }
+
+    public static void status(String s) {
+        for (TunnelListener l : listeners) {
+            l.status(s);
+        }
+    }
+}
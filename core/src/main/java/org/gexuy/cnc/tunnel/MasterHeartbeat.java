@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the heartbeats to the master server on a thread of its own so a
+ * slow master never holds up the controller. A heartbeat goes out every
+ * minute, after a failure it is retried sooner with a jittered exponential
+ * backoff so a restarted master doesn't get every tunnel at once.
+ *
+ * The response is always read to the end and the connection is never
+ * disconnected, that way HttpURLConnection keeps the socket alive and
+ * reuses it for the next heartbeat.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class MasterHeartbeat {
+
+    public static final long INTERVAL = 60000;
+
+    private static final long MIN_BACKOFF = 5000;
+    private static final long MAX_BACKOFF = 300000;
+    private static final int TIMEOUT = 5000;
+
+    /**
+     * Called from the heartbeat thread.
+     */
+    public interface Listener {
+        /**
+         * @return the query string describing the tunnel right now
+         */
+        String query(boolean maintenance) throws IOException;
+
+        void heartbeat(boolean ok);
+    }
+
+    private final String master;
+    private final Listener listener;
+    private final ScheduledExecutorService executor;
+    private long backoff = 0;
+    private volatile boolean stopped = false;
+
+    public MasterHeartbeat(String master, Listener listener) {
+        this.master = master;
+        this.listener = listener;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "MasterHeartbeat");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Sends the first heartbeat right away and keeps sending them until
+     * maintenance() is called.
+     */
+    public void start() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                beat();
+            }
+        });
+    }
+
+    /**
+     * Stops the regular heartbeats and tells the master we are going away.
+     */
+    public void maintenance() {
+        stopped = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (send(true)) {
+                    Main.log("Master notified of maintenance.\n");
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits a moment for anything still queued to go out.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(TIMEOUT * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void beat() {
+        if (stopped) {
+            return;
+        }
+
+        Main.log("Sending a heartbeat to master server.");
+
+        boolean ok = send(false);
+        listener.heartbeat(ok);
+
+        long delay;
+        if (ok) {
+            backoff = 0;
+            delay = INTERVAL;
+        } else {
+            backoff = Math.min(Math.max(backoff * 2, MIN_BACKOFF), MAX_BACKOFF);
+            // anywhere between half and the full backoff
+            delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            Main.log("Retrying heartbeat in " + (delay / 1000) + " seconds.");
+        }
+
+        if (!stopped) {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    beat();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private boolean send(boolean maintenance) {
+        try {
+            URL url = new URL(master + listener.query(maintenance));
+            HttpURLConnection con = (HttpURLConnection)url.openConnection();
+            con.setRequestMethod("GET");
+            con.setConnectTimeout(TIMEOUT);
+            con.setReadTimeout(TIMEOUT);
+
+            int status = con.getResponseCode();
+            drain(status >= 400 ? con.getErrorStream() : con.getInputStream());
+
+            if (status >= 400) {
+                Main.log("Master server reported error " + status + ".");
+                return false;
+            }
+
+            return true;
+        } catch (IOException e) {
+            Main.log("Failed to send heartbeat: " + e.toString());
+            return false;
+        }
+    }
+
+    // the connection only goes back to the keep-alive cache once it is read
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+
+        byte[] buf = new byte[512];
+        try {
+            while (in.read(buf) != -1) {
+                // nothing to do with it
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the /metrics endpoint in the Prometheus text format. All
+ * counters are striped LongAdders so the relay workers never contend on
+ * them. The drop counters double as aggregated log messages.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class Metrics implements HttpHandler {
+
+    private static final int[] STATUSES = { 200, 400, 401, 429, 500, 503 };
+
+    public final LongAdder packets = new LongAdder();
+    public final LongAdder bytes = new LongAdder();
+    public final LongAdder broadcasts = new LongAdder();
+    public final LongAdder pings = new LongAdder();
+    public final LongAdder pingsLimited = new LongAdder();
+
+    public final TunnelLog.Counter unknownSender;
+    public final TunnelLog.Counter unknownReceiver;
+    public final TunnelLog.Counter spoofed;
+    public final TunnelLog.Counter notPeer;
+    public final TunnelLog.Counter underflow;
+    public final TunnelLog.Counter overflow;
+    public final TunnelLog.Counter sendDropped;
+    public final TunnelLog.Counter overBudget;
+    public final TunnelLog.Counter ioErrors;
+
+    public final LongAdder timeouts = new LongAdder();
+    public final LongAdder heartbeatsOk = new LongAdder();
+    public final LongAdder heartbeatsFailed = new LongAdder();
+
+    private final LongAdder[] allocations = new LongAdder[STATUSES.length];
+
+    public Metrics(TunnelLog log) {
+        unknownSender = log.counter("packets from unknown clients dropped");
+        unknownReceiver = log.counter("packets to unknown clients dropped");
+        spoofed = log.counter("packets with a spoofed address dropped");
+        notPeer = log.counter("packets between different games dropped");
+        underflow = log.counter("truncated packets dropped");
+        overflow = log.counter("oversized packets dropped");
+        sendDropped = log.counter("packets dropped on a full send queue");
+        overBudget = log.counter("packets over the budget of their source dropped");
+        ioErrors = log.counter("I/O errors when handling events");
+
+        for (int i = 0; i < allocations.length; i++) {
+            allocations[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Counts the outcome of a /request call by its HTTP status.
+     */
+    public void allocation(int status) {
+        for (int i = 0; i < STATUSES.length; i++) {
+            if (STATUSES[i] == status) {
+                allocations[i].increment();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange t) throws IOException {
+        t.getRequestBody().close();
+
+        byte[] response = render().getBytes("UTF-8");
+        t.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+        t.sendResponseHeaders(200, response.length);
+        OutputStream os = t.getResponseBody();
+        os.write(response);
+        os.close();
+    }
+
+    private String render() {
+        StringBuilder sb = new StringBuilder();
+
+        counter(sb, "tunnel_packets_forwarded_total", "Packets forwarded.");
+        sample(sb, "tunnel_packets_forwarded_total", null, packets.sum());
+        counter(sb, "tunnel_bytes_forwarded_total", "Bytes forwarded.");
+        sample(sb, "tunnel_bytes_forwarded_total", null, bytes.sum());
+        counter(sb, "tunnel_broadcasts_total", "Broadcast packets fanned out to the peers of their sender.");
+        sample(sb, "tunnel_broadcasts_total", null, broadcasts.sum());
+        counter(sb, "tunnel_pings_total", "UDP pings by result.");
+        sample(sb, "tunnel_pings_total", "result=\"answered\"", pings.sum());
+        sample(sb, "tunnel_pings_total", "result=\"limited\"", pingsLimited.sum());
+
+        counter(sb, "tunnel_packets_dropped_total", "Packets dropped by reason.");
+        sample(sb, "tunnel_packets_dropped_total", "reason=\"unknown_sender\"", unknownSender.sum());
+        sample(sb, "tunnel_packets_dropped_total", "reason=\"unknown_receiver\"", unknownReceiver.sum());
+        sample(sb, "tunnel_packets_dropped_total", "reason=\"spoofed_address\"", spoofed.sum());
+        sample(sb, "tunnel_packets_dropped_total", "reason=\"not_peer\"", notPeer.sum());
+        sample(sb, "tunnel_packets_dropped_total", "reason=\"buffer_underflow\"", underflow.sum());
+        sample(sb, "tunnel_packets_dropped_total", "reason=\"buffer_overflow\"", overflow.sum());
+        sample(sb, "tunnel_packets_dropped_total", "reason=\"send_queue_full\"", sendDropped.sum());
+        sample(sb, "tunnel_packets_dropped_total", "reason=\"source_budget\"", overBudget.sum());
+        counter(sb, "tunnel_io_errors_total", "I/O errors on the game socket.");
+        sample(sb, "tunnel_io_errors_total", null, ioErrors.sum());
+
+        counter(sb, "tunnel_allocations_total", "Game allocation requests by HTTP status.");
+        for (int i = 0; i < STATUSES.length; i++) {
+            sample(sb, "tunnel_allocations_total", "status=\"" + STATUSES[i] + "\"", allocations[i].sum());
+        }
+
+        counter(sb, "tunnel_client_timeouts_total", "Clients that timed out.");
+        sample(sb, "tunnel_client_timeouts_total", null, timeouts.sum());
+        counter(sb, "tunnel_heartbeats_total", "Master server heartbeats by result.");
+        sample(sb, "tunnel_heartbeats_total", "result=\"ok\"", heartbeatsOk.sum());
+        sample(sb, "tunnel_heartbeats_total", "result=\"failed\"", heartbeatsFailed.sum());
+
+        TunnelController controller = Main.controller;
+        if (controller != null) {
+            gauge(sb, "tunnel_clients", "Clients in use.");
+            sample(sb, "tunnel_clients", null, controller.getClientCount());
+            gauge(sb, "tunnel_clients_max", "Maximum number of clients.");
+            sample(sb, "tunnel_clients_max", null, controller.getMaxClients());
+
+            counter(sb, "tunnel_game_packets_forwarded_total", "Packets forwarded per game.");
+            for (GameSession game : controller.getGames()) {
+                sample(sb, "tunnel_game_packets_forwarded_total", "game=\"" + game.getId() + "\"", game.getPackets());
+            }
+            counter(sb, "tunnel_game_bytes_forwarded_total", "Bytes forwarded per game.");
+            for (GameSession game : controller.getGames()) {
+                sample(sb, "tunnel_game_bytes_forwarded_total", "game=\"" + game.getId() + "\"", game.getBytes());
+            }
+        }
+
+        Relay[] relays = Main.relays;
+        if (relays != null) {
+            gauge(sb, "tunnel_buffers_in_use", "Off-heap packet buffers in use per worker.");
+            for (int i = 0; i < relays.length; i++) {
+                sample(sb, "tunnel_buffers_in_use", "worker=\"" + i + "\"", relays[i].getBufferPool().getInUse());
+            }
+            gauge(sb, "tunnel_buffers", "Off-heap packet buffers per worker.");
+            for (int i = 0; i < relays.length; i++) {
+                sample(sb, "tunnel_buffers", "worker=\"" + i + "\"", relays[i].getBufferPool().getCapacity());
+            }
+            // a peak at the capacity or any exhaustion means -buffers is too small
+            gauge(sb, "tunnel_buffers_peak", "Most off-heap packet buffers ever in use at once per worker.");
+            for (int i = 0; i < relays.length; i++) {
+                sample(sb, "tunnel_buffers_peak", "worker=\"" + i + "\"", relays[i].getBufferPool().getPeak());
+            }
+            counter(sb, "tunnel_buffers_exhausted_total", "Times a worker found no free packet buffer.");
+            for (int i = 0; i < relays.length; i++) {
+                sample(sb, "tunnel_buffers_exhausted_total", "worker=\"" + i + "\"", relays[i].getBufferPool().getExhausted());
+            }
+            gauge(sb, "tunnel_send_queue_depth", "Packets waiting for a writable socket per worker.");
+            for (int i = 0; i < relays.length; i++) {
+                sample(sb, "tunnel_send_queue_depth", "worker=\"" + i + "\"", relays[i].getQueued());
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, long value) {
+        sb.append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+}
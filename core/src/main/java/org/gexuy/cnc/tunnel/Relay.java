@@ -0,0 +1,614 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * One packet forwarding worker. Every worker owns its selector and buffers,
+ * the client lookups all go through the shared TunnelController.
+ *
+ * A worker has a channel on every tunnel port, the key of such a channel
+ * carries the TunnelPort whose ids are used on it. Besides those a worker
+ * also reads the ports of clients that have one of their own, those keys
+ * carry the client as their attachment.
+ * Once the client is known its channel is connected to it and the kernel
+ * drops everything else that arrives there.
+ *
+ * Every packet first goes through a cheap filter that needs nothing but
+ * the packet and the id bit sets, so a flood of junk or from a single host
+ * is dropped before it gets near the client tables.
+ *
+ * A packet from GameSession.BROADCAST is a ping, no client can send as
+ * that id. It is sent straight back as it is from the filter, up to a
+ * number of pings per second per worker, so a client can measure its round
+ * trip to the tunnel without asking for a game first.
+ *
+ * A packet to GameSession.BROADCAST goes to every other member of the
+ * sender's game, the one buffer is sent to each with its own id written in
+ * as the destination.
+ *
+ * Packets the kernel won't take right away wait in a SendQueue of the
+ * socket they go out on, those are flushed when the selector reports the
+ * socket writable.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class Relay implements Runnable {
+
+    // packets to take from one channel before looking at the others
+    private static final int BATCH = 64;
+
+    public static final int SEND_QUEUE = 32;
+    public static final int PING_LIMIT = 200;
+
+    // bigger pings aren't answered, the tunnel is no amplifier
+    private static final int PING_SIZE = 64;
+
+    private final TunnelController controller;
+    private final Metrics metrics = Main.metrics;
+    private final IdleStrategy idle;
+    private final Selector selector;
+    private final DatagramChannel[] channels;
+    private final ConcurrentLinkedQueue<Client> pending = new ConcurrentLinkedQueue<Client>();
+    private CaptureRing.Writer capture = null;
+    private SourceBudget budget = null;
+    private int pingLimit = PING_LIMIT;
+    private long pingSecond = 0;
+    private int pings = 0;
+    private final BufferPool pool;
+    private final ByteBuffer buf;
+    private int sendQueue = SEND_QUEUE;
+    private boolean dropOldest = true;
+    // one queue per tunnel port, own ports only get one while backlogged
+    private SendQueue[] queues;
+    private final ArrayList<SendQueue> backlog = new ArrayList<SendQueue>();
+    private final ArrayDeque<SendQueue> spare = new ArrayDeque<SendQueue>();
+    private int work;
+
+    // drains every ready channel, counting the packets into work
+    private final Consumer<SelectionKey> ready = new Consumer<SelectionKey>() {
+        @Override
+        public void accept(SelectionKey k) {
+            Object attachment = k.attachment();
+            if (k.isWritable()) {
+                flush(attachment);
+                work++;
+            }
+
+            if (!k.isValid() || !k.isReadable()) {
+                // nothing to read
+            } else if (attachment instanceof Client) {
+                Client owner = (Client)attachment;
+                work += drain((DatagramChannel)k.channel(), owner.getSession().getPort(), owner, Clock.update());
+            } else {
+                work += drain((DatagramChannel)k.channel(), (TunnelPort)attachment, null, Clock.update());
+            }
+
+            if (!k.channel().isOpen()) {
+                k.cancel();
+            }
+        }
+    };
+
+    public Relay(TunnelController controller, DatagramChannel channel, IdleStrategy idle, int buffers) throws IOException {
+        this(controller, new DatagramChannel[] { channel }, idle, buffers);
+    }
+
+    /**
+     * @param channels a channel for every port of the controller, in the
+     *        same order
+     */
+    public Relay(TunnelController controller, DatagramChannel[] channels, IdleStrategy idle, int buffers) throws IOException {
+        this.controller = controller;
+        this.idle = idle;
+        this.selector = Selector.open();
+        this.channels = channels;
+        this.pool = new BufferPool(buffers, 4096);
+        this.buf = pool.acquire();
+        for (int i = 0; i < channels.length; i++) {
+            channels[i].register(selector, SelectionKey.OP_READ, controller.getPort(i));
+        }
+        createQueues();
+    }
+
+    private void createQueues() {
+        queues = new SendQueue[channels.length];
+        for (int i = 0; i < channels.length; i++) {
+            queues[i] = new SendQueue(selector, pool, metrics.sendDropped, sendQueue, dropOldest);
+            queues[i].reset(channels[i], null);
+        }
+    }
+
+    public BufferPool getBufferPool() {
+        return pool;
+    }
+
+    /**
+     * Records every packet this worker receives into the ring, has to be
+     * set before the worker is started.
+     */
+    public void setCapture(CaptureRing ring) {
+        capture = ring.writer();
+    }
+
+    /**
+     * Sets how many packets wait on a socket the kernel won't take more
+     * from, has to be set before the worker is started. The queued packets
+     * come out of the worker's buffers.
+     *
+     * @param size packets per socket, zero drops them right away
+     * @param dropOldest drop the oldest queued packet instead of the new
+     *        one when the queue is full
+     */
+    public void setSendQueue(int size, boolean dropOldest) {
+        this.sendQueue = size;
+        this.dropOldest = dropOldest;
+        createQueues();
+    }
+
+    /**
+     * Sets how many packets per second a source address gets through this
+     * worker, there is no limit unless this is called before the worker is
+     * started.
+     *
+     * @param limit packets per second, zero for no limit
+     */
+    public void setSourceLimit(int limit) {
+        budget = (limit > 0 ? new SourceBudget(limit) : null);
+    }
+
+    /**
+     * Sets how many pings per second this worker answers, has to be set
+     * before the worker is started.
+     *
+     * @param limit pings per second, zero to answer none
+     */
+    public void setPingLimit(int limit) {
+        pingLimit = limit;
+    }
+
+    /**
+     * @return packets waiting to be sent, read from any thread
+     */
+    public int getQueued() {
+        // everything but the receive buffer is in a queue
+        return pool.getInUse() - 1;
+    }
+
+    /**
+     * Hands the own port of a client to this worker, safe to call from any
+     * thread.
+     */
+    public void register(Client client) {
+        pending.add(client);
+        selector.wakeup();
+    }
+
+    private void registerPending() {
+        Client client;
+        while ((client = pending.poll()) != null) {
+            try {
+                client.getChannel().register(selector, SelectionKey.OP_READ, client);
+            } catch (ClosedChannelException e) {
+                // the client was already gone
+            }
+        }
+    }
+
+    /**
+     * Opens a non-blocking channel on the given port. When reusePort is set
+     * we ask for SO_REUSEPORT so that several workers can have their own
+     * socket on the same port and the kernel spreads the traffic.
+     *
+     * @return the channel or null if SO_REUSEPORT was requested but is not
+     *         available on this platform
+     */
+    public static DatagramChannel open(int port, boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+
+        if (reusePort && !setReusePort(channel)) {
+            channel.close();
+            return null;
+        }
+
+        channel.socket().bind(new InetSocketAddress("0.0.0.0", port));
+        return channel;
+    }
+
+    // SO_REUSEPORT is not in Java 8, look it up by name from the options the
+    // runtime actually supports
+    @SuppressWarnings("unchecked")
+    private static boolean setReusePort(DatagramChannel channel) throws IOException {
+        for (SocketOption<?> option : channel.supportedOptions()) {
+            if (option.name().equals("SO_REUSEPORT") && option.type() == Boolean.class) {
+                channel.setOption((SocketOption<Boolean>)option, true);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        try {
+            int idleCount = 0;
+
+            while (true) {
+                work = 0;
+
+                registerPending();
+                if (!backlog.isEmpty()) {
+                    sweep();
+                }
+                idle.select(selector, ready, idleCount);
+
+                idleCount = (work > 0 ? 0 : idleCount + 1);
+            }
+        } catch (Exception e) {
+            Main.log(TunnelLog.Level.ERROR, e.toString());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Keeps receiving until the channel is empty or we have handled a full
+     * batch, whatever is left is picked up on the next pass.
+     *
+     * @return the number of packets received
+     */
+    private int drain(DatagramChannel chan, TunnelPort port, Client owner, long now) {
+        int count = 0;
+
+        while (count < BATCH) {
+            try {
+                if (!handle(chan, port, owner, now)) {
+                    break;
+                }
+            } catch (IOException e) {
+                metrics.ioErrors.increment();
+                if (Main.isLogging(TunnelLog.Level.DEBUG)) {
+                    Main.log(TunnelLog.Level.DEBUG, "IOException when handling event: " + e.getMessage());
+                }
+                break;
+            } catch (BufferUnderflowException e) {
+                metrics.underflow.increment();
+            } catch (BufferOverflowException e) {
+                metrics.overflow.increment();
+            }
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * @param port the tunnel port whose ids are used
+     * @param owner the client whose own port this is, null for the shared
+     *        port
+     * @return false if there was nothing to receive
+     */
+    private boolean handle(DatagramChannel chan, TunnelPort port, Client owner, long now) throws IOException {
+        buf.clear();
+        InetSocketAddress from = (InetSocketAddress)chan.receive(buf);
+
+        if (from == null) {
+            return false;
+        }
+
+        buf.flip();
+
+        Client clientTo;
+
+        if (!admit(chan, buf, from, port, now)) {
+            clientTo = null;
+        } else if (owner != null && buf.getShort(0) != owner.getId()) {
+            // an own port only takes packets of the client it belongs to
+            metrics.spoofed.increment();
+            clientTo = null;
+        } else {
+            clientTo = route(buf, from, port, now);
+        }
+
+        if (capture != null) {
+            capture.record(buf, from, port.getIndex(), clientTo != null);
+        }
+
+        if (clientTo == null) {
+            return true;
+        }
+
+        if (owner != null && !owner.isConnected()) {
+            // route() has checked the IP, this only takes over the port
+            InetSocketAddress seen = owner.getAddress();
+            if (seen == from || owner.compareAndSetAddress(seen, from)) {
+                chan.connect(from);
+                owner.setConnected();
+                controller.learned(owner);
+            }
+        }
+
+        if (buf.getShort(2) == GameSession.BROADCAST) {
+            broadcast(clientTo, port);
+        } else {
+            forward(clientTo, port);
+        }
+
+        return true;
+    }
+
+    /**
+     * Sends the packet in buf to one client and counts it.
+     */
+    private void forward(Client clientTo, TunnelPort port) throws IOException {
+        int bytes = buf.remaining();
+        boolean sent;
+        if (clientTo.isConnected()) {
+            sent = send(clientTo);
+        } else if (clientTo.getAddress() != null) {
+            sent = queues[port.getIndex()].send(buf, clientTo.getAddress());
+        } else {
+            return;
+        }
+
+        if (!sent) {
+            return;
+        }
+
+        metrics.packets.increment();
+        metrics.bytes.add(bytes);
+        clientTo.getSession().forwarded(bytes);
+    }
+
+    /**
+     * Sends the packet in buf to every member of the sender's game but the
+     * sender, each gets it addressed to its own id.
+     */
+    private void broadcast(Client sender, TunnelPort port) {
+        GameSession session = sender.getSession();
+        int position = buf.position();
+        int limit = buf.limit();
+
+        metrics.broadcasts.increment();
+
+        for (int i = 0; i < session.size(); i++) {
+            Client peer = session.getClient(i);
+            if (peer == null || peer == sender) {
+                continue;
+            }
+
+            buf.limit(limit);
+            buf.position(position);
+            buf.putShort(position + 2, peer.getId());
+
+            try {
+                forward(peer, port);
+            } catch (IOException e) {
+                // one unreachable peer shouldn't cost the others the packet
+                metrics.ioErrors.increment();
+            }
+        }
+    }
+
+    /**
+     * Sends the packet in buf on the own port of a client, it only gets a
+     * queue when the kernel doesn't take the packet.
+     *
+     * @return false if the packet was dropped
+     */
+    private boolean send(Client client) throws IOException {
+        SendQueue q = backlogOf(client);
+        if (q == null) {
+            if (client.getChannel().write(buf) > 0) {
+                return true;
+            }
+
+            q = spare.poll();
+            if (q == null) {
+                q = new SendQueue(selector, pool, metrics.sendDropped, sendQueue, dropOldest);
+            }
+            q.reset(client.getChannel(), client);
+            backlog.add(q);
+        }
+
+        boolean sent = q.send(buf, null);
+        if (q.isEmpty()) {
+            retire(q);
+        }
+        return sent;
+    }
+
+    private SendQueue backlogOf(Client client) {
+        for (int i = 0; i < backlog.size(); i++) {
+            if (backlog.get(i).getClient() == client) {
+                return backlog.get(i);
+            }
+        }
+        return null;
+    }
+
+    private void retire(SendQueue q) {
+        backlog.remove(q);
+        spare.add(q);
+    }
+
+    // a closed own port never becomes writable, give its packets back
+    private void sweep() {
+        for (int i = backlog.size() - 1; i >= 0; i--) {
+            SendQueue q = backlog.get(i);
+            if (!q.isOpen()) {
+                q.clear();
+                backlog.remove(i);
+                spare.add(q);
+            }
+        }
+    }
+
+    /**
+     * Sends what has queued up on a socket that became writable.
+     */
+    private void flush(Object attachment) {
+        SendQueue q;
+        if (attachment instanceof SendQueue) {
+            q = (SendQueue)attachment;
+        } else if (attachment instanceof Client) {
+            q = backlogOf((Client)attachment);
+        } else {
+            q = queues[((TunnelPort)attachment).getIndex()];
+        }
+
+        if (q == null) {
+            return;
+        }
+
+        try {
+            if (q.flush()) {
+                return;
+            }
+        } catch (IOException e) {
+            metrics.ioErrors.increment();
+        }
+
+        if (q.getClient() != null) {
+            retire(q);
+        }
+    }
+
+    /**
+     * The first look at a packet, only reads the packet and the id bit
+     * sets. Drops are counted, never logged. Pings are answered here.
+     *
+     * @return false if the packet was dropped or was a ping
+     */
+    private boolean admit(DatagramChannel chan, ByteBuffer buf, InetSocketAddress from, TunnelPort port, long now) throws IOException {
+        if (buf.remaining() < 4) {
+            metrics.underflow.increment();
+            return false;
+        }
+
+        if (budget != null && !budget.take(from.getAddress(), now)) {
+            metrics.overBudget.increment();
+            return false;
+        }
+
+        if (buf.getShort(0) == GameSession.BROADCAST) {
+            ping(chan, buf, from, now);
+            return false;
+        }
+
+        ClientIdPool ids = port.getPool();
+        if (!ids.isAllocated(buf.getShort(0))) {
+            metrics.unknownSender.increment();
+            return false;
+        }
+        if (!ids.isAllocated(buf.getShort(2))) {
+            metrics.unknownReceiver.increment();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Sends a ping back unless this worker has answered enough of them
+     * this second.
+     */
+    private void ping(DatagramChannel chan, ByteBuffer buf, InetSocketAddress from, long now) throws IOException {
+        long second = now / 1000;
+        if (second != pingSecond) {
+            pingSecond = second;
+            pings = 0;
+        }
+
+        if (buf.remaining() > PING_SIZE || pings >= pingLimit) {
+            metrics.pingsLimited.increment();
+            return;
+        }
+
+        pings++;
+        int position = buf.position();
+        chan.send(buf, from);
+        buf.position(position);
+        metrics.pings.increment();
+    }
+
+    /**
+     * Checks the header of a received packet and finds where it should go.
+     * The buffer is left at the start of the packet.
+     *
+     * @return the receiving client, the sender itself for a broadcast, or
+     *         null if the packet was dropped
+     */
+    Client route(ByteBuffer buf, InetSocketAddress from, TunnelPort port, long now) {
+        short hdrFrom = buf.getShort();
+        short hdrTo = buf.getShort();
+
+        buf.rewind();
+
+        Client clientFrom = port.getClient(hdrFrom);
+        Client clientTo = null;
+        TunnelLog.Counter drop = null;
+
+        if (clientFrom == null) {
+            drop = metrics.unknownSender;
+        } else if (clientFrom.getAddress() == null && clientFrom.compareAndSetAddress(null, from)) {
+            controller.learned(clientFrom);
+        } else if (!clientFrom.isFrom(from)) {
+            // also where a worker that lost the race for the first packet
+            // ends up
+            // don't allow faking client id
+            drop = metrics.spoofed;
+        }
+
+        // only members of the same game can talk to each other
+        if (drop == null && hdrTo == GameSession.BROADCAST) {
+            clientTo = clientFrom;
+        } else if (drop == null) {
+            clientTo = clientFrom.getSession().route(hdrTo);
+            if (clientTo == null) {
+                drop = (port.getClient(hdrTo) == null ? metrics.unknownReceiver : metrics.notPeer);
+            } else if (hdrFrom == hdrTo) {
+                drop = metrics.notPeer;
+            }
+        }
+
+        if (drop != null) {
+            drop.increment();
+            if (Main.isLogging(TunnelLog.Level.DEBUG)) {
+                Main.log(TunnelLog.Level.DEBUG, "Ignoring packet from " + hdrFrom + " to " + hdrTo + " (" + from + "), was " + buf.limit() + " bytes");
+            }
+            return null;
+        }
+
+        clientFrom.setLastPacket(now);
+        return clientTo;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Packets one relay worker couldn't send on a socket yet. A non-blocking
+ * send gives up when the kernel's send buffer is full, instead of losing
+ * the packet it is copied into a buffer from the worker's pool and sent
+ * once the selector reports the socket writable again. Once something is
+ * queued everything after it queues too so a destination never sees its
+ * packets out of order.
+ *
+ * When the queue is full either the oldest queued packet or the new one is
+ * dropped. Like the pool a queue belongs to one worker and is not thread
+ * safe.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class SendQueue {
+
+    private final Selector selector;
+    private final BufferPool pool;
+    private final TunnelLog.Counter dropped;
+    private final boolean dropOldest;
+    private final ByteBuffer[] packets;
+    private final InetSocketAddress[] targets;
+
+    private DatagramChannel channel;
+    private Client client;
+    private int head = 0;
+    private int size = 0;
+
+    /**
+     * @param capacity packets to hold, zero drops whatever doesn't fit in
+     *        the send buffer
+     * @param dropOldest make room for a new packet by dropping the oldest
+     *        instead of the new one
+     */
+    public SendQueue(Selector selector, BufferPool pool, TunnelLog.Counter dropped, int capacity, boolean dropOldest) {
+        this.selector = selector;
+        this.pool = pool;
+        this.dropped = dropped;
+        this.dropOldest = dropOldest;
+        this.packets = new ByteBuffer[capacity];
+        this.targets = new InetSocketAddress[capacity];
+    }
+
+    /**
+     * Points an empty queue at a socket.
+     *
+     * @param client the client whose own, connected, socket this is or null
+     *        for a tunnel port
+     */
+    public void reset(DatagramChannel channel, Client client) {
+        this.channel = channel;
+        this.client = client;
+    }
+
+    public Client getClient() {
+        return client;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Sends a packet right away if nothing is waiting before it, queues it
+     * otherwise.
+     *
+     * @param to the destination, null on a connected socket
+     * @return false if the packet was dropped
+     */
+    public boolean send(ByteBuffer buf, InetSocketAddress to) throws IOException {
+        if (size == 0 && write(buf, to)) {
+            return true;
+        }
+
+        if (size == packets.length) {
+            if (!dropOldest || size == 0) {
+                dropped.increment();
+                return false;
+            }
+            release();
+            dropped.increment();
+        }
+
+        ByteBuffer copy = pool.acquire();
+        if (copy == null) {
+            dropped.increment();
+            return false;
+        }
+
+        copy.put(buf);
+        copy.flip();
+
+        int tail = (head + size) % packets.length;
+        packets[tail] = copy;
+        targets[tail] = to;
+        if (size++ == 0) {
+            interest(true);
+        }
+        return true;
+    }
+
+    /**
+     * Sends what the socket takes, called when it is writable.
+     *
+     * @return false once the queue is empty
+     */
+    public boolean flush() throws IOException {
+        try {
+            while (size > 0) {
+                if (!write(packets[head], targets[head])) {
+                    return true;
+                }
+                release();
+            }
+        } catch (IOException e) {
+            // the destination is gone or unreachable, the rest would fail too
+            clear();
+            interest(false);
+            throw e;
+        }
+
+        interest(false);
+        return false;
+    }
+
+    /**
+     * Drops everything, the socket is gone.
+     */
+    public void clear() {
+        while (size > 0) {
+            release();
+        }
+    }
+
+    private boolean write(ByteBuffer buf, InetSocketAddress to) throws IOException {
+        return (to == null ? channel.write(buf) : channel.send(buf, to)) > 0;
+    }
+
+    private void release() {
+        pool.release(packets[head]);
+        packets[head] = null;
+        targets[head] = null;
+        head = (head + 1) % packets.length;
+        size--;
+    }
+
+    // the socket may be registered for reading already, by this worker or
+    // another one, a key of our own is only needed for the latter
+    private void interest(boolean write) throws ClosedChannelException {
+        SelectionKey key = channel.keyFor(selector);
+        if (key == null) {
+            if (write) {
+                channel.register(selector, SelectionKey.OP_WRITE, this);
+            }
+            return;
+        }
+
+        if (!key.isValid()) {
+            return;
+        }
+
+        if (key.attachment() instanceof SendQueue) {
+            key.attach(this);
+        }
+        key.interestOps(write ? key.interestOps() | SelectionKey.OP_WRITE : key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Packets per second a source address may send through one relay worker.
+ * The sources share a fixed four way set associative table, a source
+ * holds its way until the second is over. When all four ways of a set are
+ * taken the colliding sources are charged to one shared overflow count of
+ * that set, so two sources can never reset each other's count.
+ *
+ * The slots are picked with a random multiplier per table so colliding
+ * addresses can't be worked out beforehand.
+ *
+ * Belongs to one worker and is not thread safe.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class SourceBudget {
+
+    private static final int WAYS = 4;
+    private static final int SET_BITS = 10;
+    private static final int SETS = 1 << SET_BITS;
+
+    private final int limit;
+    private final long multiplier = ThreadLocalRandom.current().nextLong() | 1;
+    private final long[] sources = new long[SETS * WAYS];
+    private final long[] seconds = new long[SETS * WAYS];
+    private final int[] counts = new int[SETS * WAYS];
+    private final long[] overflowSeconds = new long[SETS];
+    private final int[] overflowCounts = new int[SETS];
+
+    /**
+     * @param limit packets per second for every source
+     */
+    public SourceBudget(int limit) {
+        this.limit = limit;
+        Arrays.fill(seconds, -1);
+        Arrays.fill(overflowSeconds, -1);
+    }
+
+    /**
+     * Counts a packet from the address.
+     *
+     * @param now the relay clock in milliseconds
+     * @return false if the source is over its budget
+     */
+    public boolean take(InetAddress address, long now) {
+        long source = Client.pack(address);
+        if (source == 0) {
+            // IPv6 hashes without copying its address, the few that collide
+            // share a budget
+            source = address.hashCode() & 0xFFFFFFFFL;
+        }
+
+        int set = (int)((source ^ (source >>> 29)) * multiplier >>> (64 - SET_BITS));
+        long second = now / 1000;
+
+        int base = set * WAYS;
+        int free = -1;
+        for (int i = base; i < base + WAYS; i++) {
+            if (seconds[i] != second) {
+                if (free < 0) {
+                    free = i;
+                }
+            } else if (sources[i] == source) {
+                return ++counts[i] <= limit;
+            }
+        }
+
+        if (free >= 0) {
+            sources[free] = source;
+            seconds[free] = second;
+            counts[free] = 1;
+            return 1 <= limit;
+        }
+
+        if (overflowSeconds[set] != second) {
+            overflowSeconds[set] = second;
+            overflowCounts[set] = 0;
+        }
+        return ++overflowCounts[set] <= limit;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The live games kept in a memory mapped file so that a new process can
+ * pick them up after a restart or a crash. Every game has a fixed size
+ * record with its members, their addresses and own ports. Writes go
+ * straight to the mapping, the kernel owns the pages so they survive the
+ * process dying at any point.
+ *
+ * The ids in use follow from the records, a restored game claims its ids
+ * from the pool again.
+ *
+ * A new file is built next to the old one and only moved over it by
+ * commit() once the restored games are in, a crash before that leaves the
+ * old one as it was.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class StateFile {
+
+    private static final int MAGIC = 0x434E4354;
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    private static final int RECORD = 256;
+    private static final int MEMBERS = 8;
+
+    // record: int used, int tunnel port, int count, int unused, long created,
+    // 16 byte request address and the members
+    private static final int R_USED = 0;
+    private static final int R_PORT = 4;
+    private static final int R_COUNT = 8;
+    private static final int R_CREATED = 16;
+    private static final int R_REQUEST = 24;
+    private static final int R_MEMBERS = 40;
+
+    // member: byte live, byte unused, short id, short own port, short udp
+    // port, 16 byte address
+    private static final int MEMBER = 24;
+    private static final int M_LIVE = 0;
+    private static final int M_ID = 2;
+    private static final int M_OWN_PORT = 4;
+    private static final int M_PORT = 6;
+    private static final int M_ADDRESS = 8;
+
+    /**
+     * A game as it was saved.
+     */
+    public static class Game {
+        public int port;
+        public long created;
+        public String requestAddress;
+        public short[] ids;
+        public InetSocketAddress[] addresses;
+        public int[] ownPorts;
+    }
+
+    private final String path;
+    private final MappedByteBuffer map;
+    // also the lock for finding a record and freeing it
+    private final ArrayDeque<Integer> free = new ArrayDeque<Integer>();
+
+    /**
+     * Creates the file anew with room for the given number of games, it
+     * takes the place of the old one with commit().
+     */
+    public StateFile(String path, int slots) throws IOException {
+        slots = Math.min(slots, (Integer.MAX_VALUE - HEADER) / RECORD);
+        this.path = path;
+
+        RandomAccessFile file = new RandomAccessFile(path + ".tmp", "rw");
+        try {
+            file.setLength(0);
+            file.setLength(HEADER + (long)slots * RECORD);
+            // the mapping stays valid after the file is closed
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        } finally {
+            file.close();
+        }
+
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(8, slots);
+        map.putInt(12, RECORD);
+
+        for (int i = 0; i < slots; i++) {
+            free.add(i);
+        }
+    }
+
+    /**
+     * Moves the new file over the old one, the mapping follows it.
+     */
+    public void commit() throws IOException {
+        map.force();
+        Files.move(Paths.get(path + ".tmp"), Paths.get(path), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads the games a previous process left behind.
+     *
+     * @return the games, none if there is no file or it is not ours
+     */
+    public static List<Game> read(String path) throws IOException {
+        List<Game> games = new ArrayList<Game>();
+        File f = new File(path);
+        if (!f.exists()) {
+            return games;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        try {
+            if (file.length() < HEADER) {
+                return games;
+            }
+
+            MappedByteBuffer in = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (in.getInt(0) != MAGIC || in.getInt(4) != VERSION || in.getInt(12) != RECORD) {
+                Main.log(TunnelLog.Level.WARN, "State file " + path + " is not from this version, ignoring it.");
+                return games;
+            }
+
+            int slots = (int)Math.min(in.getInt(8), (file.length() - HEADER) / RECORD);
+            for (int i = 0; i < slots; i++) {
+                int at = HEADER + i * RECORD;
+                if (in.getInt(at + R_USED) != 1) {
+                    continue;
+                }
+
+                int count = 0;
+                int members = Math.min(in.getInt(at + R_COUNT), MEMBERS);
+                for (int m = 0; m < members; m++) {
+                    if (in.get(at + R_MEMBERS + m * MEMBER + M_LIVE) != 0) {
+                        count++;
+                    }
+                }
+
+                if (count == 0) {
+                    continue;
+                }
+
+                Game game = new Game();
+                game.port = in.getInt(at + R_PORT);
+                game.created = in.getLong(at + R_CREATED);
+                InetAddress request = getAddress(in, at + R_REQUEST);
+                game.requestAddress = (request == null ? "0.0.0.0" : request.getHostAddress());
+                game.ids = new short[count];
+                game.addresses = new InetSocketAddress[count];
+                game.ownPorts = new int[count];
+
+                for (int m = 0, n = 0; m < members; m++) {
+                    int mat = at + R_MEMBERS + m * MEMBER;
+                    if (in.get(mat + M_LIVE) == 0) {
+                        continue;
+                    }
+
+                    game.ids[n] = in.getShort(mat + M_ID);
+                    game.ownPorts[n] = in.getShort(mat + M_OWN_PORT) & 0xFFFF;
+                    InetAddress address = getAddress(in, mat + M_ADDRESS);
+                    if (address != null) {
+                        game.addresses[n] = new InetSocketAddress(address, in.getShort(mat + M_PORT) & 0xFFFF);
+                    }
+                    n++;
+                }
+
+                games.add(game);
+            }
+        } finally {
+            file.close();
+        }
+
+        return games;
+    }
+
+    /**
+     * Saves a new game and remembers its record in the session.
+     *
+     * @return false if the file is full
+     */
+    public boolean add(GameSession session) {
+        int slot;
+        synchronized (free) {
+            if (free.isEmpty()) {
+                return false;
+            }
+            slot = free.poll();
+        }
+
+        int at = HEADER + slot * RECORD;
+        map.putInt(at + R_PORT, session.getPort().getPort());
+        map.putInt(at + R_COUNT, session.size());
+        map.putLong(at + R_CREATED, session.getCreated());
+        try {
+            putAddress(at + R_REQUEST, InetAddress.getByName(session.getRequestAddress()));
+        } catch (UnknownHostException e) {
+            putAddress(at + R_REQUEST, null);
+        }
+
+        for (int m = 0; m < MEMBERS; m++) {
+            int mat = at + R_MEMBERS + m * MEMBER;
+            Client client = (m < session.size() ? session.getClient(m) : null);
+            if (client == null) {
+                map.put(mat + M_LIVE, (byte)0);
+                continue;
+            }
+
+            map.putShort(mat + M_ID, client.getId());
+            map.putShort(mat + M_OWN_PORT, (short)client.getPort());
+            InetSocketAddress address = client.getAddress();
+            putAddress(mat + M_ADDRESS, address == null ? null : address.getAddress());
+            map.putShort(mat + M_PORT, (short)(address == null ? 0 : address.getPort()));
+            map.put(mat + M_LIVE, (byte)1);
+        }
+
+        // the record only counts once everything else is in place
+        map.putInt(at + R_USED, 1);
+        synchronized (free) {
+            session.setStateSlot(slot);
+        }
+        return true;
+    }
+
+    /**
+     * Saves the address a client was learned from.
+     */
+    public void address(Client client) {
+        GameSession session = client.getSession();
+        InetSocketAddress address = client.getAddress();
+        if (address == null) {
+            return;
+        }
+
+        // the record can't be freed and taken by another game meanwhile
+        synchronized (free) {
+            int slot = session.getStateSlot();
+            if (slot < 0) {
+                return;
+            }
+
+            int mat = HEADER + slot * RECORD + R_MEMBERS + session.indexOf(client) * MEMBER;
+            putAddress(mat + M_ADDRESS, address.getAddress());
+            map.putShort(mat + M_PORT, (short)address.getPort());
+        }
+    }
+
+    /**
+     * Forgets a client that has left, the game ends with its last client.
+     */
+    public void remove(Client client, boolean last) {
+        GameSession session = client.getSession();
+
+        synchronized (free) {
+            int slot = session.getStateSlot();
+            if (slot < 0) {
+                return;
+            }
+
+            int at = HEADER + slot * RECORD;
+            if (last) {
+                session.setStateSlot(-1);
+                map.putInt(at + R_USED, 0);
+                free.add(slot);
+            } else {
+                map.put(at + R_MEMBERS + session.indexOf(client) * MEMBER + M_LIVE, (byte)0);
+            }
+        }
+    }
+
+    // 16 bytes, IPv4 in its IPv4 mapped form and all zeros for none
+    private void putAddress(int at, InetAddress address) {
+        byte[] b = (address == null ? new byte[16] : address.getAddress());
+        int offset = 16 - b.length;
+        for (int i = 0; i < 16; i++) {
+            map.put(at + i, (byte)0);
+        }
+        if (b.length == 4) {
+            map.put(at + 10, (byte)0xFF);
+            map.put(at + 11, (byte)0xFF);
+        }
+        for (int i = 0; i < b.length; i++) {
+            map.put(at + offset + i, b[i]);
+        }
+    }
+
+    private static InetAddress getAddress(MappedByteBuffer in, int at) throws UnknownHostException {
+        byte[] b = new byte[16];
+        boolean empty = true;
+        for (int i = 0; i < 16; i++) {
+            b[i] = in.get(at + i);
+            empty &= (b[i] == 0);
+        }
+        // an IPv4 mapped address comes back as an Inet4Address
+        return empty ? null : InetAddress.getByAddress(b);
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything /status.json shows, taken once per controller tick. Nothing
+ * in here changes after it is built, so the HTTP threads read it without
+ * touching the controller or the relays however often it is polled. The
+ * whole document is rendered up front, a filtered one is put together from
+ * the games rendered up front.
+ *
+ * Rates are the difference to the previous snapshot.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public final class StatusSnapshot {
+
+    /**
+     * A game as it was when the snapshot was taken.
+     */
+    public static final class Game {
+        public final long id;
+        public final int port;
+        public final String host;
+        public final long packets;
+        public final long bytes;
+        private final short[] clients;
+        private final String json;
+
+        Game(GameSession session, Game previous, long now, long elapsed) {
+            id = session.getId();
+            port = session.getPort().getPort();
+            host = session.getRequestAddress();
+            packets = session.getPackets();
+            bytes = session.getBytes();
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"id\":").append(id);
+            sb.append(",\"port\":").append(port);
+            sb.append(",\"host\":").append(quote(host));
+            sb.append(",\"created\":").append(session.getCreated());
+            sb.append(",\"packets\":").append(packets);
+            sb.append(",\"bytes\":").append(bytes);
+            sb.append(",\"packetsPerSecond\":").append(rate(packets, previous == null ? packets : previous.packets, elapsed));
+            sb.append(",\"bytesPerSecond\":").append(rate(bytes, previous == null ? bytes : previous.bytes, elapsed));
+            sb.append(",\"clients\":[");
+
+            List<Short> ids = new ArrayList<Short>();
+            for (int i = 0; i < session.size(); i++) {
+                Client client = session.getClient(i);
+                if (client == null) {
+                    continue;
+                }
+
+                InetSocketAddress address = client.getAddress();
+                if (!ids.isEmpty()) {
+                    sb.append(',');
+                }
+                sb.append("{\"id\":").append(client.getId());
+                sb.append(",\"address\":").append(address == null ? "null" : quote(address.getAddress().getHostAddress() + ":" + address.getPort()));
+                sb.append(",\"ownPort\":").append(client.getChannel() == null ? "null" : Integer.toString(client.getPort()));
+                sb.append(",\"connected\":").append(client.isConnected());
+                sb.append(",\"idle\":").append(Math.max(now - client.getLastPacket(), 0));
+                sb.append('}');
+                ids.add(client.getId());
+            }
+            sb.append("]}");
+
+            clients = new short[ids.size()];
+            for (int i = 0; i < clients.length; i++) {
+                clients[i] = ids.get(i);
+            }
+            json = sb.toString();
+        }
+
+        public boolean hasClient(short id) {
+            for (short c : clients) {
+                if (c == id) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final long time;
+    private final long packets;
+    private final long bytes;
+    private final List<Game> games;
+    private final Map<Long, Game> byId;
+    private final List<HostRateLimiter.Host> hosts;
+    private final String head;
+    private final byte[] full;
+
+    /**
+     * @param previous the last snapshot, null for the first one
+     */
+    public StatusSnapshot(TunnelController controller, StatusSnapshot previous, long now) {
+        long elapsed = (previous == null ? 0 : now - previous.time);
+
+        time = now;
+        packets = Main.metrics.packets.sum();
+        bytes = Main.metrics.bytes.sum();
+
+        List<Game> g = new ArrayList<Game>();
+        Map<Long, Game> m = new HashMap<Long, Game>();
+        for (GameSession session : controller.getGames()) {
+            Game game = new Game(session, previous == null ? null : previous.byId.get(session.getId()), now, elapsed);
+            g.add(game);
+            m.put(game.id, game);
+        }
+        games = Collections.unmodifiableList(g);
+        byId = Collections.unmodifiableMap(m);
+        hosts = Collections.unmodifiableList(controller.getHosts(now));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"name\":").append(quote(controller.getName()));
+        sb.append(",\"time\":").append(now);
+        sb.append(",\"ports\":[");
+        for (int i = 0; i < controller.getPortCount(); i++) {
+            sb.append(i > 0 ? "," : "").append(controller.getPort(i).getPort());
+        }
+        sb.append("],\"clients\":").append(controller.getClientCount());
+        sb.append(",\"maxClients\":").append(controller.getMaxClients());
+        sb.append(",\"maintenance\":").append(controller.isMaintenance());
+        sb.append(",\"master\":").append(quote(controller.getMasterState()));
+        sb.append(",\"packets\":").append(packets);
+        sb.append(",\"bytes\":").append(bytes);
+        sb.append(",\"packetsPerSecond\":").append(rate(packets, previous == null ? packets : previous.packets, elapsed));
+        sb.append(",\"bytesPerSecond\":").append(rate(bytes, previous == null ? bytes : previous.bytes, elapsed));
+        head = sb.toString();
+
+        full = render(games, hosts);
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public List<Game> getGames() {
+        return games;
+    }
+
+    /**
+     * Renders the document, filtered down to what matches every filter
+     * that is given.
+     *
+     * @param game only the game with this id, null for any
+     * @param host only games requested from this address and that host's
+     *        rate limit, null for any
+     * @param client only the game this client id is in, null for any
+     * @param port only games on this tunnel port, null for any
+     */
+    public byte[] render(Long game, String host, Short client, Integer port) {
+        if (game == null && host == null && client == null && port == null) {
+            return full;
+        }
+
+        List<Game> g = new ArrayList<Game>();
+        for (Game candidate : games) {
+            if ((game == null || candidate.id == game)
+                    && (host == null || candidate.host.equals(host))
+                    && (client == null || candidate.hasClient(client))
+                    && (port == null || candidate.port == port)) {
+                g.add(candidate);
+            }
+        }
+
+        List<HostRateLimiter.Host> h = new ArrayList<HostRateLimiter.Host>();
+        for (HostRateLimiter.Host candidate : hosts) {
+            if (host == null || candidate.address.equals(host)) {
+                h.add(candidate);
+            }
+        }
+
+        return render(g, h);
+    }
+
+    private byte[] render(List<Game> g, List<HostRateLimiter.Host> h) {
+        StringBuilder sb = new StringBuilder(head);
+        sb.append(",\"games\":[");
+        for (int i = 0; i < g.size(); i++) {
+            sb.append(i > 0 ? "," : "").append(g.get(i).json);
+        }
+        sb.append("],\"hosts\":[");
+        for (int i = 0; i < h.size(); i++) {
+            HostRateLimiter.Host host = h.get(i);
+            sb.append(i > 0 ? "," : "");
+            sb.append("{\"address\":").append(quote(host.address));
+            sb.append(",\"available\":").append(host.available);
+            sb.append(",\"fullIn\":").append(host.fullIn);
+            sb.append('}');
+        }
+        sb.append("]}\n");
+
+        try {
+            return sb.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long rate(long value, long previous, long elapsed) {
+        return elapsed > 0 ? (value - previous) * 1000 / elapsed : 0;
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int)c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Two level timing wheel with one second ticks. The inner wheel covers the
+ * next 64 seconds, the outer one the next 68 minutes and anything further
+ * out waits in an overflow list. Advancing only touches the slots that
+ * come due, so the cost follows the number of expiring entries and not the
+ * number of entries in the wheel.
+ *
+ * Only the thread calling advance() may touch the wheel, other threads
+ * hand their entries over with schedule().
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class TimingWheel {
+
+    public static final long TICK = 1000;
+
+    private static final int SLOTS = 64;
+    private static final int MASK = SLOTS - 1;
+
+    /**
+     * Something that is due at some point. Entries are never cancelled,
+     * whatever they time out should check if it is still relevant.
+     */
+    public abstract static class Entry {
+        private long deadline;
+        private Entry next;
+
+        /**
+         * Called when the deadline has passed.
+         *
+         * @return a new deadline to stay in the wheel or zero to leave
+         */
+        protected abstract long expire(long now);
+    }
+
+    private final Entry[] inner = new Entry[SLOTS];
+    private final Entry[] outer = new Entry[SLOTS];
+    private Entry overflow = null;
+    private long tick;
+    private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<Entry>();
+
+    public TimingWheel(long now) {
+        this.tick = now / TICK;
+    }
+
+    /**
+     * Adds an entry, safe to call from any thread. It is put in its slot on
+     * the next advance.
+     */
+    public void schedule(Entry e, long deadline) {
+        e.deadline = deadline;
+        pending.add(e);
+    }
+
+    /**
+     * Expires everything that is due by now.
+     */
+    public void advance(long now) {
+        Entry e;
+        while ((e = pending.poll()) != null) {
+            insert(e, tick + 1);
+        }
+
+        long target = now / TICK;
+
+        while (tick < target) {
+            tick++;
+
+            if ((tick & MASK) == 0) {
+                if ((tick & (SLOTS * SLOTS - 1)) == 0) {
+                    Entry list = overflow;
+                    overflow = null;
+                    reinsert(list);
+                }
+
+                int o = (int)((tick >>> 6) & MASK);
+                Entry list = outer[o];
+                outer[o] = null;
+                reinsert(list);
+            }
+
+            int i = (int)(tick & MASK);
+            Entry list = inner[i];
+            inner[i] = null;
+
+            while (list != null) {
+                Entry cur = list;
+                list = list.next;
+                cur.next = null;
+
+                long deadline = cur.expire(now);
+                if (deadline > 0) {
+                    cur.deadline = deadline;
+                    insert(cur, tick + 1);
+                }
+            }
+        }
+    }
+
+    private void reinsert(Entry list) {
+        while (list != null) {
+            Entry cur = list;
+            list = list.next;
+            cur.next = null;
+            insert(cur, tick);
+        }
+    }
+
+    /**
+     * Puts an entry in its slot, anything due before minTick fires at
+     * minTick.
+     */
+    private void insert(Entry e, long minTick) {
+        long due = Math.max((e.deadline + TICK - 1) / TICK, minTick);
+        long delta = due - tick;
+
+        if (delta < SLOTS) {
+            int i = (int)(due & MASK);
+            e.next = inner[i];
+            inner[i] = e;
+        } else if (delta < SLOTS * SLOTS) {
+            int o = (int)((due >>> 6) & MASK);
+            e.next = outer[o];
+            outer[o] = e;
+        } else {
+            e.next = overflow;
+            overflow = e;
+        }
+    }
+}
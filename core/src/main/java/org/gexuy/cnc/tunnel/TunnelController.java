@@ -0,0 +1,760 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class TunnelController implements HttpHandler, Runnable {
+
+    private class ClientTimeout extends TimingWheel.Entry {
+        private final Client client;
+
+        public ClientTimeout(Client client) {
+            this.client = client;
+        }
+
+        @Override
+        protected long expire(long now) {
+            if (client.getSession().getPort().getClient(client.getId()) != client) {
+                return 0;
+            }
+
+            long deadline = client.getLastPacket() + 60000;
+            if (deadline >= now) {
+                return deadline;
+            }
+
+            Main.log("Client " + client.getId() +  " timed out.");
+            Main.metrics.timeouts.increment();
+            removeClient(client, now);
+            return 0;
+        }
+    }
+
+    private final TunnelPort[] ports;
+    private final ConcurrentHashMap<Long, GameSession> games;
+
+    private String name;
+    private String password;
+    private int maxclients;
+    private int port;
+    private String master;
+    private String masterpw = null;
+    private int iplimit;
+    private final HostRateLimiter limiter;
+    private volatile boolean maintenance = false;
+    private final TimingWheel wheel;
+    private volatile byte[] statusResponse;
+    private volatile StatusSnapshot snapshot;
+    private final MasterHeartbeat heartbeat;
+    private volatile boolean connected = false;
+    // free own ports for clients, taken from the head and returned to the
+    // tail so a port rests a while before it is handed out again
+    private final ArrayDeque<Integer> freePorts = new ArrayDeque<Integer>();
+    private boolean gamePorts = false;
+    private int nextRelay = 0;
+    private StateFile state = null;
+
+    public TunnelController(String name, String password, int port, int maxclients, String master, String masterpw, int iplimit, int iprate) {
+        this(name, password, new int[] { port }, maxclients, master, masterpw, iplimit, iprate);
+    }
+
+    /**
+     * @param ports the UDP ports to route games at, the first one is the one
+     *        announced to the master
+     * @param maxclients the clients all ports together may hold
+     */
+    public TunnelController(String name, String password, int[] ports, int maxclients, String master, String masterpw, int iplimit, int iprate) {
+        this.ports = new TunnelPort[ports.length];
+        for (int i = 0; i < ports.length; i++) {
+            this.ports[i] = new TunnelPort(i, ports[i]);
+        }
+        games = new ConcurrentHashMap<Long, GameSession>();
+
+        this.name = name;
+        this.password = password;
+        this.maxclients = maxclients;
+        this.port = ports[0];
+        this.master = master;
+        this.masterpw = masterpw;
+        this.iplimit = iplimit;
+        this.wheel = new TimingWheel(System.currentTimeMillis());
+        this.limiter = new HostRateLimiter(iplimit, iprate, wheel);
+
+        if (master != null) {
+            heartbeat = new MasterHeartbeat(master, new MasterHeartbeat.Listener() {
+                @Override
+                public String query(boolean maintenance) throws IOException {
+                    return heartbeatQuery(maintenance);
+                }
+
+                @Override
+                public void heartbeat(boolean ok) {
+                    connected = ok;
+                    if (ok) {
+                        Main.metrics.heartbeatsOk.increment();
+                    } else {
+                        Main.metrics.heartbeatsFailed.increment();
+                    }
+                }
+            });
+        } else {
+            heartbeat = null;
+        }
+
+        refreshStatus();
+        snapshot = new StatusSnapshot(this, null, System.currentTimeMillis());
+    }
+
+    /**
+     * @return the client with the given id on the first port
+     */
+    public Client getClient(short clientId) {
+        return ports[0].getClient(clientId);
+    }
+
+    public TunnelPort getPort(int index) {
+        return ports[index];
+    }
+
+    public int getPortCount() {
+        return ports.length;
+    }
+
+    /**
+     * @return the clients on all ports together
+     */
+    public int getClientCount() {
+        int count = 0;
+        for (TunnelPort p : ports) {
+            count += p.getClients().size();
+        }
+        return count;
+    }
+
+    private boolean isTunnelPort(int p) {
+        for (TunnelPort tunnelPort : ports) {
+            if (tunnelPort.getPort() == p) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getMaxClients() {
+        return maxclients;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isMaintenance() {
+        return maintenance;
+    }
+
+    /**
+     * @return disabled, connected or disconnected
+     */
+    public String getMasterState() {
+        return heartbeat == null ? "disabled" : connected ? "connected" : "disconnected";
+    }
+
+    /**
+     * @return the hosts that are rate limited to some degree
+     */
+    public List<HostRateLimiter.Host> getHosts(long now) {
+        return iplimit > 0 ? limiter.getHosts(now) : new ArrayList<HostRateLimiter.Host>();
+    }
+
+    /**
+     * @return the last status snapshot, rebuilt on every tick
+     */
+    public StatusSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public Collection<GameSession> getGames() {
+        return games.values();
+    }
+
+    /**
+     * Gives every client of a new game a UDP port of its own from the
+     * given range. The shared port keeps working for clients that don't
+     * know about theirs.
+     */
+    public void setGamePorts(int from, int to) {
+        synchronized (freePorts) {
+            for (int p = from; p <= to; p++) {
+                if (!isTunnelPort(p)) {
+                    freePorts.add(p);
+                }
+            }
+            gamePorts = true;
+        }
+    }
+
+    private void reply(HttpExchange t, int status) throws IOException {
+        Main.metrics.allocation(status);
+        t.sendResponseHeaders(status, 0);
+        t.getResponseBody().close();
+    }
+
+    private void handleRequest(HttpExchange t) throws IOException {
+        String params = t.getRequestURI().getQuery();
+        List<InetAddress> addresses = new ArrayList<InetAddress>();
+        InetAddress remote = t.getRemoteAddress().getAddress();
+        String requestAddress = remote.getHostAddress();
+        int requestedAmount = 0;
+        boolean pwOk = (password == null);
+
+        if (params == null)
+            params = "";
+
+        String[] pairs = params.split("&");
+        for (int i = 0; i < pairs.length; i++) {
+            String kv[] = pairs[i].split("=");
+            if (kv.length != 2)
+                continue;
+
+            kv[0] = URLDecoder.decode(kv[0], "UTF-8");
+            kv[1] = URLDecoder.decode(kv[1], "UTF-8");
+
+            if (kv[0].equals("clients")) {
+                requestedAmount = Integer.parseInt(kv[1]);
+            }
+
+            if (kv[0].equals("password") && !pwOk && kv[1].equals(password)) {
+                pwOk = true;
+            }
+        }
+
+        if (!pwOk) {
+            // Unauthorized
+            Main.log("Request was unauthorized.");
+            reply(t, 401);
+            return;
+        }
+
+        if (requestedAmount < 2 || requestedAmount > GameSession.MAX_CLIENTS) {
+            // Bad Request
+            Main.log("Request had invalid requested amount (" + requestedAmount + ").");
+            reply(t, 400);
+            return;
+        }
+
+        if (maintenance) {
+            // Service Unavailable
+            Main.log("Request to start a new game was denied because of maintenance.");
+            reply(t, 503);
+            return;
+        }
+
+        if (iplimit > 0 && !limiter.acquire(remote, System.currentTimeMillis())) {
+            // Too Many Requests
+            Main.log("Same address tried to request more than " + iplimit + " routers.");
+            reply(t, 429);
+            return;
+        }
+
+        GameSession session = createGame(requestedAmount, requestAddress);
+        if (session == null) {
+            if (iplimit > 0) {
+                limiter.refund(remote);
+            }
+            // Service Unavailable
+            reply(t, 503);
+            return;
+        }
+
+        StringBuilder ret = new StringBuilder();
+        StringBuilder clientPorts = new StringBuilder();
+        ret.append("[");
+        for (int i = 0; i < session.size(); i++) {
+            if (i > 0) {
+                ret.append(",");
+                clientPorts.append(",");
+            }
+            ret.append(session.getClient(i).getId());
+            clientPorts.append(session.getClient(i).getPort());
+        }
+        ret.append("]");
+
+        // the body stays as it was, the own ports are in the same order as
+        // the ids
+        if (session.getClient(0).getChannel() != null) {
+            t.getResponseHeaders().add("X-Tunnel-Ports", clientPorts.toString());
+        }
+        if (ports.length > 1) {
+            t.getResponseHeaders().add("X-Tunnel-Port", Integer.toString(session.getPort().getPort()));
+        }
+
+        Main.metrics.allocation(200);
+        t.sendResponseHeaders(200, ret.length());
+        OutputStream os = t.getResponseBody();
+        os.write(ret.toString().getBytes());
+        os.close();
+    }
+
+    /**
+     * Reserves client ids for a new game and publishes its clients.
+     *
+     * @return the game or null if we don't have enough free slots
+     */
+    GameSession createGame(int requestedAmount, String requestAddress) {
+        synchronized (ports) {
+            if (requestedAmount + getClientCount() > maxclients) {
+                Main.log("Request wanted more than we could provide.");
+                return null;
+            }
+
+            // a game has to fit in the id space of one port, fill them in
+            // order so that a single port tunnel behaves like it always did
+            TunnelPort port = null;
+            short[] reserved = null;
+            for (int i = 0; i < ports.length && reserved == null; i++) {
+                port = ports[i];
+                reserved = reserve(port, requestedAmount);
+            }
+
+            if (reserved == null) {
+                Main.log("Request wanted more than we could provide and we also exhausted our queue.");
+                return null;
+            }
+
+            GameSession session = new GameSession(reserved, requestAddress, port);
+            if (!openPorts(session)) {
+                for (int i = 0; i < reserved.length; i++) {
+                    port.getPool().release(reserved[i]);
+                }
+                Main.log("Request wanted more ports than we could provide.");
+                return null;
+            }
+
+            publish(session);
+            for (int i = 0; i < session.size(); i++) {
+                Client client = session.getClient(i);
+                Main.log("Client " + client.getId() + " allocated" + (client.getChannel() != null ? " on port " + client.getPort() : "") + ".");
+            }
+            Main.log("Game " + session.getId() + " started for " + requestAddress + (ports.length > 1 ? " on port " + port.getPort() : "") + ".");
+            refreshStatus();
+
+            return session;
+        }
+    }
+
+    /**
+     * Makes the clients of a game known to the relays and the timeout
+     * sweep and saves the game if we keep a state file.
+     */
+    private void publish(GameSession session) {
+        games.put(session.getId(), session);
+        for (int i = 0; i < session.size(); i++) {
+            Client client = session.getClient(i);
+            session.getPort().getClients().add(client);
+            wheel.schedule(new ClientTimeout(client), client.getLastPacket() + 60000);
+            if (client.getChannel() != null) {
+                Relay[] relays = Main.relays;
+                relays[nextRelay++ % relays.length].register(client);
+            }
+        }
+
+        if (state != null && !state.add(session)) {
+            Main.log(TunnelLog.Level.WARN, "State file is full, game " + session.getId() + " won't survive a restart.");
+        }
+    }
+
+    /**
+     * Picks up the games a previous process saved in the state file and
+     * keeps the file up to date from now on. The relays have to exist by
+     * now so that restored own ports can be handed to them.
+     */
+    public void setStateFile(String path) throws IOException {
+        List<StateFile.Game> saved = StateFile.read(path);
+
+        synchronized (ports) {
+            StateFile file = new StateFile(path, maxclients);
+            state = file;
+
+            for (StateFile.Game game : saved) {
+                restoreGame(game);
+            }
+            refreshStatus();
+
+            // the old file stays until the new one has every game in it
+            try {
+                file.commit();
+            } catch (IOException e) {
+                state = null;
+                throw e;
+            }
+        }
+
+        Main.log("State file " + path + " restored " + games.size() + " games with " + getClientCount() + " clients.");
+    }
+
+    private void restoreGame(StateFile.Game saved) {
+        TunnelPort port = null;
+        for (TunnelPort p : ports) {
+            if (p.getPort() == saved.port) {
+                port = p;
+            }
+        }
+
+        if (port == null) {
+            Main.log(TunnelLog.Level.WARN, "Saved game on port " + saved.port + " was dropped, we are not routing that port.");
+            return;
+        }
+
+        for (int i = 0; i < saved.ids.length; i++) {
+            if (!port.getPool().claim(saved.ids[i])) {
+                for (int j = 0; j < i; j++) {
+                    port.getPool().release(saved.ids[j]);
+                }
+                Main.log(TunnelLog.Level.WARN, "Saved game on port " + saved.port + " was dropped, client " + saved.ids[i] + " is taken.");
+                return;
+            }
+        }
+
+        GameSession session = new GameSession(saved.ids, saved.requestAddress, port, saved.created);
+        for (int i = 0; i < session.size(); i++) {
+            Client client = session.getClient(i);
+            if (saved.addresses[i] != null) {
+                client.setAddress(saved.addresses[i]);
+            }
+            if (saved.ownPorts[i] != 0) {
+                restorePort(client, saved.ownPorts[i]);
+            }
+        }
+
+        publish(session);
+    }
+
+    // takes the same own port again if we still hand out that one
+    private void restorePort(Client client, int p) {
+        synchronized (freePorts) {
+            if (!freePorts.remove(Integer.valueOf(p))) {
+                return;
+            }
+
+            try {
+                DatagramChannel channel = Relay.open(p, false);
+                client.setChannel(channel, p);
+                InetSocketAddress address = client.getAddress();
+                if (address != null) {
+                    channel.connect(address);
+                    client.setConnected();
+                }
+            } catch (IOException e) {
+                Main.log(TunnelLog.Level.WARN, "Game port " + p + " could not be restored: " + e.getMessage());
+                freePorts.add(p);
+            }
+        }
+    }
+
+    /**
+     * Called by the relays when they learn the address of a client.
+     */
+    void learned(Client client) {
+        if (state != null) {
+            state.address(client);
+        }
+    }
+
+    /**
+     * Takes ids for a game from one port, for thread safety we just try to
+     * reserve them and give them back if there are not enough.
+     *
+     * @return the ids or null if the port is full
+     */
+    private static short[] reserve(TunnelPort port, int amount) {
+        short[] reserved = new short[amount];
+        for (int i = 0; i < amount; i++) {
+            int clientId = port.getPool().allocate();
+            if (clientId == -1) {
+                for (int j = 0; j < i; j++) {
+                    port.getPool().release(reserved[j]);
+                }
+                return null;
+            }
+            reserved[i] = (short)clientId;
+        }
+        return reserved;
+    }
+
+    /**
+     * Opens an own port for every member of the game if we hand them out.
+     *
+     * @return false if there were not enough ports for everyone
+     */
+    private boolean openPorts(GameSession session) {
+        synchronized (freePorts) {
+            if (!gamePorts) {
+                return true;
+            }
+
+            int opened = 0;
+            int tries = freePorts.size();
+            while (opened < session.size() && tries-- > 0) {
+                int p = freePorts.poll();
+                try {
+                    session.getClient(opened).setChannel(Relay.open(p, false), p);
+                    opened++;
+                } catch (IOException e) {
+                    Main.log(TunnelLog.Level.WARN, "Game port " + p + " is not available: " + e.getMessage());
+                    freePorts.add(p);
+                }
+            }
+
+            if (opened < session.size()) {
+                for (int i = 0; i < opened; i++) {
+                    closePort(session.getClient(i));
+                }
+                return false;
+            }
+
+            return true;
+        }
+    }
+
+    private void closePort(Client client) {
+        DatagramChannel channel = client.getChannel();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing we can do about it
+            }
+            synchronized (freePorts) {
+                freePorts.add(client.getPort());
+            }
+        }
+    }
+
+    /**
+     * Releases clients that have been quiet for a minute and forgets hosts
+     * whose rate limit has recovered.
+     */
+    void expire(long now) {
+        wheel.advance(now);
+    }
+
+    /**
+     * Frees the slot of a client and ends its game if it was the last one.
+     */
+    void removeClient(Client client, long now) {
+        TunnelPort port = client.getSession().getPort();
+        if (port.getClients().remove(client)) {
+            port.getPool().release(client.getId());
+            closePort(client);
+            synchronized (ports) {
+                refreshStatus();
+            }
+            GameSession session = client.getSession();
+            boolean last = session.remove(client);
+            if (state != null) {
+                state.remove(client, last);
+            }
+            if (last) {
+                games.remove(session.getId());
+                Main.log("Game " + session.getId() + " ended after " + ((now - session.getCreated()) / 1000) + " seconds.");
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the /status response, called whenever the slot count
+     * changes so that serving it is just a write. The caller holds the
+     * ports lock so an older count can never be written over a newer one.
+     */
+    private void refreshStatus() {
+        int used = getClientCount();
+        statusResponse = ((maxclients - used) + " slots free.\n" + used + " slots in use.\n").getBytes();
+    }
+
+    private void handleStatus(HttpExchange t) throws IOException {
+        byte[] response = statusResponse;
+        t.sendResponseHeaders(200, response.length);
+        OutputStream os = t.getResponseBody();
+        os.write(response);
+        os.close();
+    }
+
+    /**
+     * Serves the last snapshot, optionally filtered by game, host, client
+     * or port.
+     */
+    private void handleStatusJson(HttpExchange t) throws IOException {
+        String params = t.getRequestURI().getQuery();
+        Long game = null;
+        String host = null;
+        Short client = null;
+        Integer port = null;
+
+        if (params == null)
+            params = "";
+
+        try {
+            for (String pair : params.split("&")) {
+                String kv[] = pair.split("=");
+                if (kv.length != 2)
+                    continue;
+
+                String value = URLDecoder.decode(kv[1], "UTF-8");
+                if (kv[0].equals("game")) {
+                    game = Long.parseLong(value);
+                } else if (kv[0].equals("host")) {
+                    host = value;
+                } else if (kv[0].equals("client")) {
+                    client = Short.parseShort(value);
+                } else if (kv[0].equals("port")) {
+                    port = Integer.parseInt(value);
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Bad Request
+            t.sendResponseHeaders(400, 0);
+            t.getResponseBody().close();
+            return;
+        }
+
+        byte[] response = snapshot.render(game, host, client, port);
+        t.getResponseHeaders().set("Content-Type", "application/json");
+        t.sendResponseHeaders(200, response.length);
+        OutputStream os = t.getResponseBody();
+        os.write(response);
+        os.close();
+    }
+
+    private void handleMaintenance(HttpExchange t) throws IOException {
+        setMaintenance();
+        t.sendResponseHeaders(200, 0);
+        t.getResponseBody().close();
+    }
+
+    public void setMaintenance() {
+        maintenance = true;
+        Main.log("Maintenance mode enabled, no new games can be started.\n");
+
+        if (heartbeat != null) {
+            heartbeat.maintenance();
+        }
+    }
+
+    private String heartbeatQuery(boolean maintenance) throws IOException {
+        return "?version=2"
+            + "&name=" + URLEncoder.encode(name, "US-ASCII")
+            + "&password=" + (password == null ? "0" : "1")
+            + "&port=" + port
+            + "&clients=" + getClientCount()
+            + "&maxclients=" + maxclients
+            + (masterpw != null ? "&masterpw=" + URLEncoder.encode(masterpw, "US-ASCII") : "")
+            + (maintenance ? "&maintenance=1" : "");
+    }
+
+    @Override
+    public void handle(HttpExchange t) throws IOException {
+        String uri = t.getRequestURI().toString();
+        t.getRequestBody().close();
+
+        // status is polled a lot, keep it out of the log unless debugging
+        Main.log(uri.startsWith("/status") ? TunnelLog.Level.DEBUG : TunnelLog.Level.INFO, "HTTPRequest: " + uri);
+
+        try {
+            if (uri.startsWith("/request")) {
+                handleRequest(t);
+            } else if (uri.startsWith("/status.json")) {
+                handleStatusJson(t);
+            } else if (uri.startsWith("/status")) {
+                handleStatus(t);
+            } else if (uri.startsWith("/maintenance/")) {
+                handleMaintenance(t);
+            } else {
+                t.sendResponseHeaders(400, 0);
+            }
+        } catch (IOException e) {
+            Main.log("Error: " + e.getMessage());
+            String error = e.getMessage();
+            t.sendResponseHeaders(500, error.length());
+            // counted once it is sure to go out, a request that failed while
+            // writing its 200 has been counted already
+            if (uri.startsWith("/request")) {
+                Main.metrics.allocation(500);
+            }
+            OutputStream os = t.getResponseBody();
+            os.write(error.getBytes());
+            os.close();
+        }
+    }
+
+    @Override
+    public void run() {
+
+        Main.status("Connecting...");
+
+        Main.log("TunnelController started.");
+
+        if (heartbeat != null) {
+            heartbeat.start();
+        }
+
+        while (true) {
+
+            long now = Clock.update();
+
+            if (maintenance && getClientCount() == 0) {
+                Main.log("Tunnel empty, doing maintenance quit.");
+                if (heartbeat != null) {
+                    heartbeat.shutdown();
+                }
+                System.exit(0);
+                return;
+            }
+
+            expire(now);
+            snapshot = new StatusSnapshot(this, snapshot, now);
+
+            Main.status(
+                (connected ? "Connected. " : "Disconnected from master. ") +
+                getClientCount() + " / " + maxclients + " players online."
+            );
+
+            try {
+                Thread.sleep(TimingWheel.TICK);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+}
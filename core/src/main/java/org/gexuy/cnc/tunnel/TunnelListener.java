@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+/**
+ * Gets what the tunnel has to tell, this is how the GUI module plugs in
+ * without the server knowing anything about it. Register with
+ * Main.addListener() before the tunnel is started.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public interface TunnelListener {
+
+    /**
+     * A formatted log line, called from the log writer thread.
+     */
+    void log(String line);
+
+    /**
+     * A one line summary of the tunnel, called about once a second from
+     * the controller thread.
+     */
+    void status(String status);
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logging that never blocks the caller. Messages go into a bounded queue
+ * and a background thread formats them and writes them to stdout, the
+ * rotated log file and the listeners. When the queue is full the
+ * message is dropped and counted.
+ *
+ * Things that can happen for every packet should use a Counter instead,
+ * those are summed up and logged once per interval.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class TunnelLog implements Runnable {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    /**
+     * Aggregated log message, incrementing is a striped add. The count keeps
+     * growing so it can also be exported as a metric.
+     */
+    public static class Counter {
+        private final String message;
+        private final LongAdder count = new LongAdder();
+        private long reported = 0;
+
+        private Counter(String message) {
+            this.message = message;
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        public long sum() {
+            return count.sum();
+        }
+    }
+
+    private static class Entry {
+        final long time;
+        final Level level;
+        final String message;
+
+        Entry(long time, Level level, String message) {
+            this.time = time;
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    private static final long REPORT_INTERVAL = 10000;
+
+    private final ArrayBlockingQueue<Entry> queue;
+    private final CopyOnWriteArrayList<Counter> counters = new CopyOnWriteArrayList<Counter>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 8192), false);
+    private volatile Level level = Level.INFO;
+
+    private String path = null;
+    private OutputStream file = null;
+    private long fileSize = 0;
+    private long maxFileSize = 0;
+    private int keepFiles = 0;
+
+    public TunnelLog(int capacity) {
+        queue = new ArrayBlockingQueue<Entry>(capacity);
+
+        Thread writer = new Thread(this, "TunnelLog");
+        writer.setDaemon(true);
+        writer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public boolean isEnabled(Level l) {
+        return l.compareTo(level) >= 0;
+    }
+
+    public void log(Level l, String s) {
+        if (!isEnabled(l)) {
+            return;
+        }
+
+        if (!queue.offer(new Entry(System.currentTimeMillis(), l, s))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Registers a message that is logged as "N message in the last 10s."
+     * whenever the counter was hit during the interval.
+     */
+    public Counter counter(String message) {
+        Counter c = new Counter(message);
+        counters.add(c);
+        return c;
+    }
+
+    /**
+     * Starts logging to a file as well. The file is rotated to path.1 ..
+     * path.keep when it grows past maxSize bytes, zero disables rotation.
+     */
+    public synchronized void setFile(String path, long maxSize, int keep) throws IOException {
+        File f = new File(path);
+        this.file = new BufferedOutputStream(new FileOutputStream(f, true), 8192);
+        this.path = path;
+        this.fileSize = f.length();
+        this.maxFileSize = maxSize;
+        this.keepFiles = keep;
+    }
+
+    @Override
+    public void run() {
+        long lastReport = System.currentTimeMillis();
+
+        while (true) {
+            try {
+                Entry e = queue.poll(1, TimeUnit.SECONDS);
+                if (e != null) {
+                    synchronized (this) {
+                        write(e);
+                        drainTo();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            if (lastReport + REPORT_INTERVAL <= now) {
+                report((now - lastReport) / 1000);
+                lastReport = now;
+            }
+        }
+    }
+
+    /**
+     * Writes out everything that is still queued, used on exit.
+     */
+    public synchronized void drain() {
+        drainTo();
+    }
+
+    private void report(long seconds) {
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            log(Level.WARN, lost + " log messages dropped in the last " + seconds + "s.");
+        }
+
+        for (Counter c : counters) {
+            long total = c.count.sum();
+            long n = total - c.reported;
+            c.reported = total;
+            if (n > 0) {
+                log(Level.INFO, n + " " + c.message + " in the last " + seconds + "s.");
+            }
+        }
+    }
+
+    // caller holds the lock
+    private void drainTo() {
+        Entry e;
+        while ((e = queue.poll()) != null) {
+            write(e);
+        }
+
+        out.flush();
+        if (file != null) {
+            try {
+                file.flush();
+            } catch (IOException ex) {
+                // silently ignore errors
+            }
+        }
+    }
+
+    // caller holds the lock
+    private void write(Entry e) {
+        String prefix = "[" + new Date(e.time).toString() + "] " + (e.level == Level.INFO ? "" : e.level + ": ");
+
+        for (String line : e.message.split("\n")) {
+            String s = prefix + line;
+            out.println(s);
+
+            for (TunnelListener l : Main.listeners) {
+                l.log(s);
+            }
+
+            if (file != null) {
+                byte[] bytes = (s + "\n").getBytes();
+                try {
+                    if (maxFileSize > 0 && fileSize + bytes.length > maxFileSize) {
+                        rotate();
+                    }
+                    file.write(bytes);
+                    fileSize += bytes.length;
+                } catch (IOException ex) {
+                    // silently ignore errors
+                }
+            }
+        }
+    }
+
+    private void rotate() throws IOException {
+        file.close();
+
+        for (int i = keepFiles - 1; i > 0; i--) {
+            File older = new File(path + "." + i);
+            if (older.exists()) {
+                File target = new File(path + "." + (i + 1));
+                target.delete();
+                older.renameTo(target);
+            }
+        }
+
+        File current = new File(path);
+        if (keepFiles > 0) {
+            File target = new File(path + ".1");
+            target.delete();
+            current.renameTo(target);
+        } else {
+            current.delete();
+        }
+
+        file = new BufferedOutputStream(new FileOutputStream(current, true), 8192);
+        fileSize = 0;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+/**
+ * One UDP port games are routed at. Client ids are only unique within a
+ * port, so every port has its own id space and client table and a tunnel
+ * with several ports can hold more clients than fit in a short.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class TunnelPort {
+
+    private final int index;
+    private final int port;
+    private final ClientTable clients = new ClientTable();
+    private final ClientIdPool pool = new ClientIdPool(GameSession.BROADCAST);
+
+    public TunnelPort(int index, int port) {
+        this.index = index;
+        this.port = port;
+    }
+
+    /**
+     * @return the position of this port in TunnelController.getPorts()
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Client getClient(short clientId) {
+        return clients.get(clientId);
+    }
+
+    public ClientTable getClients() {
+        return clients;
+    }
+
+    public ClientIdPool getPool() {
+        return pool;
+    }
+}
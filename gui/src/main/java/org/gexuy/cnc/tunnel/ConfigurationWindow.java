@@ -196,7 +196,7 @@ public class ConfigurationWindow extends javax.swing.JFrame {
 
         new Thread(new Runnable() {
             public void run() {
-                Main.start();
+                GuiMain.start();
             }
         }).start();
     }//GEN-LAST:event_startButtonActionPerformed
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.gexuy.cnc.tunnel;
+
+import javax.swing.JFrame;
+import javax.swing.UIManager;
+
+/**
+ * Entry point of the gui jar. Takes the same arguments as Main, shows the
+ * configuration window unless -headless is given and hooks the status
+ * window into the tunnel as a listener.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public class GuiMain {
+
+    public static void main(String[] args) {
+
+        if (!Main.parse(args)) {
+            return;
+        }
+
+        if (!Main.headless) {
+            try {
+                UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+            } catch (Exception e) { }
+
+            ConfigurationWindow configurationWindow = new ConfigurationWindow();
+            configurationWindow.setVisible(true);
+            configurationWindow.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        } else {
+            Main.start();
+        }
+    }
+
+    public static void start() {
+        StatusWindow statusWindow = new StatusWindow();
+        statusWindow.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+        statusWindow.status("Initializing...");
+        statusWindow.setVisible(true);
+
+        Main.addListener(statusWindow);
+        Main.start();
+    }
+}
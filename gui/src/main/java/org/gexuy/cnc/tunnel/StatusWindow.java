@@ -36,7 +36,7 @@ import javax.swing.border.EmptyBorder;
  *
  * @author Toni Spets <toni.spets@iki.fi>
  */
-public class StatusWindow extends JFrame implements WindowListener {
+public class StatusWindow extends JFrame implements WindowListener, TunnelListener {
 
     private JTextArea logArea;
     private JLabel statusLabel;